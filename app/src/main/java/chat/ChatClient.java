@@ -0,0 +1,933 @@
+package chat;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.*;
+import javax.swing.text.*;
+
+public class ChatClient extends JFrame {
+    private final MessageListModel messages = new MessageListModel(VIEW_ROWS);
+    private final JList<MessageListModel.Row> messageList;
+    private final JScrollPane messageScroll;
+    private JTextField textField;
+    private final JList<String> userList;
+    private final DefaultListModel<String> userListModel;
+    private final JLabel typingLabel;
+    private static final long TYPING_REFRESH_MS = 2000;
+    private static final int RECEIPT_DEBOUNCE_MS = 1000; // quiet time after the last PM before saying how far we have read
+    private static final long RECONNECT_MIN_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
+    private static final int VIEW_ROWS = 2000; // rows kept in the message view; the rest are paged in from the server
+    private static final long FLUSH_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8); // EDT time per batch, so input and painting keep up
+    private long typingSentAt; // when /typing was last sent, 0 when not typing
+    private final JTextPane pinnedArea;
+    private OutputStream output;
+    private final Object sendLock = new Object();
+    private volatile boolean binaryProtocol;
+    private volatile Socket socket;
+    private String username;
+    private final Map<String, Color> userColors = new HashMap<>();
+    private final String sessionKey = Base64.getEncoder().encodeToString(UUID.randomUUID().toString().getBytes()).substring(0, 16); // 16-byte key
+    private final MessageCipher cipher = new MessageCipher(sessionKey);
+    private final JComboBox<String> themeCombo;
+    // Inbound pipeline: the reader thread decodes events into this queue and a single coalesced flush on the
+    // Event Dispatch Thread applies them in batches. TYPING only ever needs its latest value.
+    private final Queue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicReference<String> latestTyping = new AtomicReference<>();
+    private int topShift; // rows added (+) or evicted (-) above the viewport during this flush
+    // Paging state, confined to the Event Dispatch Thread
+    private final java.util.List<MessageListModel.Row> pageRows = new ArrayList<>(); // HISTORY page being received
+    private enum Paging { NONE, OLDER, NEWER }
+    private Paging paging = Paging.NONE; // the outstanding /history or /newer request
+    private boolean moreHistory = true;
+    private boolean atLiveEdge = true; // false once newer messages were evicted to make room for older ones
+    private final java.util.List<MessageListModel.Row> heldRows = new ArrayList<>(); // non-message rows that arrived while detached
+    private volatile String newestMsgId; // sent as SINCE= on reconnect so only missed messages are replayed
+    private volatile String resumeToken;
+    private volatile String room;
+    private volatile boolean resumeSent; // on this connection
+    private volatile String rejoinRoom; // where we were when the connection dropped
+    private volatile boolean connected;
+    private volatile long presenceVersion = -1; // of the user list shown; -1 until the room's snapshot arrives
+    private volatile boolean userListRequested; // a /users snapshot is on its way
+    private volatile String searchQuery; // the last /search sent, without its cursor
+    private String lastSearchResultId; // reader thread only
+    // Read receipts, confined to the Event Dispatch Thread; all keyed by the other user of the conversation
+    private final Map<String, Long> readUpTo = new HashMap<>(); // newest PM from them we have shown
+    private final Map<String, Long> reportedUpTo = new HashMap<>(); // what we last told the server
+    private final Map<String, Deque<String>> unreadByThem = new HashMap<>(); // our PMs to them not yet read, oldest first
+    private final javax.swing.Timer receiptTimer = new javax.swing.Timer(RECEIPT_DEBOUNCE_MS, e -> sendReadReceipts());
+    private final Map<String, File> pendingUploads = new java.util.concurrent.ConcurrentHashMap<>(); // by file name
+    private final Map<String, File> pendingDownloads = new java.util.concurrent.ConcurrentHashMap<>(); // by file ID
+
+    public ChatClient() {
+        super("Chat Application");
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setSize(700, 500);
+        setLayout(new BorderLayout(5, 5));
+
+        // Pinned Messages Area
+        pinnedArea = new JTextPane();
+        pinnedArea.setEditable(false);
+        pinnedArea.setPreferredSize(new Dimension(0, 50));
+        add(new JScrollPane(pinnedArea), BorderLayout.NORTH);
+
+        // Main Message Area: a list renders only the rows in view, however many the window holds
+        messageList = new JList<>(messages);
+        messageList.setFont(new Font("Arial", Font.PLAIN, 14));
+        messageList.setCellRenderer(new MessageRenderer());
+        messageList.setFixedCellHeight(messageList.getFontMetrics(messageList.getFont()).getHeight() + 2);
+        messageList.setFixedCellWidth(100); // rows stretch to the viewport; fixed sizes spare the list from measuring every row
+        messageList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                MessageListModel.Row row = rowAt(e.getPoint());
+                if (row == null) return;
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    showMessageContextMenu(row, e.getX(), e.getY());
+                } else if (e.getClickCount() == 2 && row.kind() == MessageListModel.Kind.FILE) {
+                    requestDownload(row.id());
+                }
+            }
+        });
+        messageScroll = new JScrollPane(messageList);
+        // Scrolling past either end of the window asks the server for the next page that way
+        messageScroll.addMouseWheelListener(e -> pageAtEdge(e.getWheelRotation()));
+        messageScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting()) pageAtEdge(0);
+        });
+        add(messageScroll, BorderLayout.CENTER);
+
+        // User List and Theme Selector
+        JPanel eastPanel = new JPanel(new BorderLayout());
+        userListModel = new DefaultListModel<>();
+        userList = new JList<>(userListModel);
+        userList.setPreferredSize(new Dimension(150, 0));
+        eastPanel.add(new JScrollPane(userList), BorderLayout.CENTER);
+
+        themeCombo = new JComboBox<>(new String[]{"Light", "Dark", "Blue"});
+        themeCombo.addActionListener(e -> applyTheme());
+        eastPanel.add(themeCombo, BorderLayout.NORTH);
+        add(eastPanel, BorderLayout.EAST);
+
+        // Input Panel
+        JPanel inputPanel = new JPanel(new BorderLayout(5, 5));
+        textField = new JTextField();
+        textField.addActionListener(e -> sendMessage());
+        textField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                // Re-announce while typing continues, before the server's typing timeout expires
+                long now = System.currentTimeMillis();
+                if (now - typingSentAt > TYPING_REFRESH_MS) {
+                    send("/typing");
+                    typingSentAt = now;
+                }
+            }
+
+            @Override
+            public void keyReleased(KeyEvent e) {
+                if (typingSentAt != 0 && textField.getText().isEmpty()) {
+                    send("/stoptyping");
+                    typingSentAt = 0;
+                }
+            }
+        });
+        inputPanel.add(textField, BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new GridLayout(1, 3, 5, 5));
+        JButton sendButton = new JButton("Send");
+        sendButton.addActionListener(e -> sendMessage());
+        buttonPanel.add(sendButton);
+
+        JButton fileButton = new JButton("File");
+        fileButton.addActionListener(e -> sendFile());
+        buttonPanel.add(fileButton);
+
+        JButton emojiButton = new JButton("😊");
+        emojiButton.addActionListener(e -> showEmojiPicker());
+        buttonPanel.add(emojiButton);
+
+        inputPanel.add(buttonPanel, BorderLayout.EAST);
+
+        typingLabel = new JLabel(" ");
+        inputPanel.add(typingLabel, BorderLayout.SOUTH);
+
+        add(inputPanel, BorderLayout.SOUTH);
+
+        // Nothing counts as read while the window is in the background
+        receiptTimer.setRepeats(false);
+        addWindowFocusListener(new WindowAdapter() {
+            @Override
+            public void windowGainedFocus(WindowEvent e) {
+                receiptTimer.restart();
+            }
+        });
+
+        setUsernameAndConnect();
+        applyTheme();
+    }
+
+    private void setUsernameAndConnect() {
+        username = JOptionPane.showInputDialog(this, "Enter your username:", "Login", JOptionPane.PLAIN_MESSAGE);
+        if (username == null || username.trim().isEmpty()) System.exit(0);
+        username = username.trim();
+        userColors.put(username, Color.BLUE);
+        connectToServer();
+    }
+
+    private void connectToServer() {
+        Thread reader = new Thread(this::stayConnected, "chat-connection");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Reader thread: keeps a connection open for the life of the window. When it drops, reconnects after
+     * a random delay between half and all of an exponentially growing backoff, so clients cut off by a
+     * server restart do not all come back at the same instant. The first attempt resumes the session.
+     */
+    private void stayConnected() {
+        int failures = 0;
+        while (true) {
+            try {
+                readConnection();
+                appendSystemMessage("Connection lost, reconnecting...");
+            } catch (IOException e) {
+                if (failures == 0) appendSystemMessage("Error connecting to server: " + e.getMessage() + ", retrying...");
+            } catch (RuntimeException e) { // the stream itself could not be decoded; only a new connection recovers
+                appendSystemMessage("Unreadable data from server (" + e + "), reconnecting...");
+            }
+            if (connected) failures = 0;
+            connected = false;
+            long ceiling = Math.min(RECONNECT_MAX_MS, RECONNECT_MIN_MS << Math.min(failures++, 16));
+            try {
+                Thread.sleep(java.util.concurrent.ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Connects and handles everything the server sends until the connection ends. */
+    private void readConnection() throws IOException {
+        try (Socket connection = new Socket("localhost", 12345)) {
+            socket = connection;
+            binaryProtocol = false;
+            resumeSent = false;
+            rejoinRoom = room;
+            ui(() -> { // an unanswered /history or /newer died with the old connection
+                pageRows.clear();
+                paging = Paging.NONE;
+            });
+            output = new BufferedOutputStream(connection.getOutputStream());
+            InputStream input = connection.getInputStream();
+            WireProtocol.Decoder decoder = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+
+            WireProtocol.Decoder.Handler handler = new WireProtocol.Decoder.Handler() {
+                // A malformed event is skipped; the ones after it are still read.
+                @Override
+                public void onLine(String message) {
+                    try {
+                        handleLine(message, decoder);
+                    } catch (RuntimeException e) {
+                        System.out.println("Skipping malformed line from server: " + message + " (" + e + ")");
+                    }
+                }
+
+                @Override
+                public void onFrame(WireProtocol.Frame frame) {
+                    try {
+                        handleFrame(frame);
+                    } catch (RuntimeException e) {
+                        System.out.println("Skipping malformed frame of type " + frame.type() + " from server (" + e + ")");
+                    }
+                }
+            };
+
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                decoder.decode(ByteBuffer.wrap(buffer, 0, read), handler);
+            }
+        } finally {
+            output = null;
+        }
+    }
+
+    /** What the server should know about our view: the newest message we have, if any, after the protocol and compression requests. */
+    private String handshakeSuffix() {
+        String newest = newestMsgId;
+        return WireProtocol.REQUEST + WireProtocol.COMPRESS + (newest != null ? WireProtocol.SINCE + newest : "");
+    }
+
+    /** Text protocol, used until the server has accepted version 2 framing. */
+    private void handleLine(String message, WireProtocol.Decoder decoder) {
+        String[] f;
+        if (message.equals("SUBMIT_USERNAME")) {
+            if (resumeToken != null && !resumeSent) {
+                resumeSent = true;
+                sendRaw(WireProtocol.RESUME + resumeToken + handshakeSuffix());
+            } else {
+                resumeToken = null; // rejected, e.g. the server restarted: log in again
+                sendRaw(username);
+            }
+        } else if (message.equals("SUBMIT_KEY")) {
+            sendRaw(sessionKey + handshakeSuffix());
+        } else if (message.startsWith("USERNAME_ACCEPTED")) {
+            if (message.startsWith(WireProtocol.ACCEPTED)) {
+                decoder.switchToBinary();
+                binaryProtocol = true;
+            }
+            if (message.endsWith(WireProtocol.COMPRESS)) decoder.switchToDeflate();
+            connected = true;
+            ui(() -> setTitle("Chat - " + username));
+        } else if (message.startsWith("SESSION:")) {
+            resumeToken = message.substring(8);
+        } else if (message.startsWith("USERLIST:")) {
+            updateUserList(-1, message.substring(9)); // text connections get the whole list, unversioned, on every change
+        } else if (message.startsWith("MSG:")) {
+            if ((f = splitWithTimestamp(message.substring(4), 4, 2)) != null) appendColoredMessage(f[0], f[1], f[2], f[3]);
+        } else if (message.startsWith("PM:")) {
+            if ((f = splitWithTimestamp(message.substring(3), 5, 3)) != null) appendPrivateMessage(f[0], f[1], f[2], f[3], f[4]);
+        } else if (message.startsWith("FILE:")) {
+            if ((f = splitWithTimestamp(message.substring(5), 4, 2)) != null) appendFileMessage(f[0], f[1], f[2], f[3]);
+        } else if (message.startsWith("UPLOAD:")) {
+            String[] parts = message.substring(7).split(":", 4);
+            if (parts.length == 4) startUpload(parts[1], parts[2], parts[3]);
+        } else if (message.startsWith("DOWNLOAD:")) {
+            String[] parts = message.substring(9).split(":", 3);
+            if (parts.length == 3) startDownload(parts[0], parts[1], parts[2]);
+        } else if (message.startsWith("TYPING:")) {
+            updateTypingStatus(message.substring(7));
+        } else if (message.startsWith("READ:")) {
+            String[] parts = message.substring(5).split(":", 2);
+            if (parts.length == 2) markRead(parts[0], parts[1]);
+        } else if (message.startsWith("EDIT:")) {
+            if ((f = splitWithTimestamp(message.substring(5), 4, 2)) != null) updateEditedMessage(f[0], f[1], f[2], f[3]);
+        } else if (message.startsWith("DELETE:")) {
+            String[] parts = message.substring(7).split(":", 2);
+            if (parts.length == 2) deleteMessage(parts[0]);
+        } else if (message.startsWith("PIN:")) {
+            if ((f = splitWithTimestamp(message.substring(4), 4, 2)) != null) pinMessage(f[0], f[1], f[2], f[3]);
+        } else if (message.startsWith("ROOM:")) {
+            enterRoom(message.substring(5));
+        } else if (message.startsWith("SYNC:")) {
+            if (message.equals("SYNC:reset")) ui(this::clearMessages);
+        } else if (message.startsWith("HISTORY_END:")) {
+            endPage(Boolean.parseBoolean(message.substring(12)));
+        } else if (message.startsWith("HISTORY:")) {
+            if ((f = splitWithTimestamp(message.substring(8), 4, 2)) != null) addPageRow(f[0], f[1], f[2], f[3]);
+        } else if (message.startsWith("SEARCH_END:")) {
+            endSearch(Boolean.parseBoolean(message.substring(11)));
+        } else if (message.startsWith("SEARCH:")) {
+            if ((f = splitWithTimestamp(message.substring(7), 4, 2)) != null) addSearchResult(f[0], f[1], f[2], f[3]);
+        } else {
+            appendSystemMessage(message);
+        }
+    }
+
+    /**
+     * Splits a text-protocol payload of {@code fieldCount} ':'-separated fields, where field
+     * {@code timestampIndex} is an HH:mm:ss timestamp and the last field may itself contain colons.
+     */
+    static String[] splitWithTimestamp(String payload, int fieldCount, int timestampIndex) {
+        String[] raw = payload.split(":", fieldCount + 2);
+        if (raw.length < fieldCount + 2) return null;
+        String[] fields = new String[fieldCount];
+        System.arraycopy(raw, 0, fields, 0, timestampIndex);
+        fields[timestampIndex] = raw[timestampIndex] + ":" + raw[timestampIndex + 1] + ":" + raw[timestampIndex + 2];
+        System.arraycopy(raw, timestampIndex + 3, fields, timestampIndex + 1, fieldCount - timestampIndex - 1);
+        return fields;
+    }
+
+    /** Version 2 frames; fields arrive already separated, so nothing is split. */
+    private void handleFrame(WireProtocol.Frame f) {
+        switch (f.type()) {
+            case WireProtocol.SYSTEM -> appendSystemMessage(f.field(0));
+            case WireProtocol.USERLIST -> updateUserList(Long.parseLong(f.field(0)), f.field(1));
+            case WireProtocol.PRESENCE_JOIN -> updatePresence(f.field(0), f.field(1), true);
+            case WireProtocol.PRESENCE_LEAVE -> updatePresence(f.field(0), f.field(1), false);
+            case WireProtocol.MSG -> appendColoredMessage(f.field(0), f.field(1), f.field(2), f.field(3));
+            case WireProtocol.PM -> appendPrivateMessage(f.field(0), f.field(1), f.field(2), f.field(3), f.field(4));
+            case WireProtocol.FILE -> appendFileMessage(f.field(0), f.field(1), f.field(2), f.field(3));
+            case WireProtocol.UPLOAD -> startUpload(f.field(1), f.field(2), f.field(3));
+            case WireProtocol.DOWNLOAD -> startDownload(f.field(0), f.field(1), f.field(2));
+            case WireProtocol.TYPING -> updateTypingStatus(f.field(0));
+            case WireProtocol.READ -> markRead(f.field(0), f.field(1));
+            case WireProtocol.EDIT -> updateEditedMessage(f.field(0), f.field(1), f.field(2), f.field(3));
+            case WireProtocol.DELETE -> deleteMessage(f.field(0));
+            case WireProtocol.PIN -> pinMessage(f.field(0), f.field(1), f.field(2), f.field(3));
+            case WireProtocol.SYNC -> {
+                if (f.field(0).equals("reset")) ui(this::clearMessages);
+            }
+            case WireProtocol.HISTORY -> addPageRow(f.field(0), f.field(1), f.field(2), f.field(3));
+            case WireProtocol.HISTORY_END -> endPage(Boolean.parseBoolean(f.field(0)));
+            case WireProtocol.SEARCH_RESULT -> addSearchResult(f.field(0), f.field(1), f.field(2), f.field(3));
+            case WireProtocol.SEARCH_END -> endSearch(Boolean.parseBoolean(f.field(0)));
+            case WireProtocol.ROOM -> enterRoom(f.field(0));
+            case WireProtocol.SESSION -> resumeToken = f.field(0);
+            default -> { }
+        }
+    }
+
+    /** Queues {@code update} for the next batch on the Event Dispatch Thread. */
+    private void ui(Runnable update) {
+        inbound.add(update);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::flush);
+    }
+
+    /**
+     * Applies queued updates on the Event Dispatch Thread: as many as fit in the time budget, then the
+     * latest typing line, then one scroll adjustment. Whatever is left goes in the next
+     * batch, so a flood of messages costs one layout and repaint per batch instead of one per line.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        JScrollBar bar = messageScroll.getVerticalScrollBar();
+        boolean atBottom = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - messageList.getFixedCellHeight();
+        topShift = 0;
+        long deadline = System.nanoTime() + FLUSH_BUDGET_NANOS;
+        Runnable update;
+        while ((update = inbound.poll()) != null) {
+            update.run();
+            if (System.nanoTime() - deadline > 0) {
+                scheduleFlush();
+                break;
+            }
+        }
+        String typing = latestTyping.getAndSet(null);
+        if (typing != null) typingLabel.setText(typing.isEmpty() ? " " : typing + " is typing...");
+
+        messageScroll.validate();
+        if (atBottom && atLiveEdge) {
+            messageList.ensureIndexIsVisible(messages.getSize() - 1);
+        } else if (topShift != 0) { // keep the rows being read where they were
+            JViewport viewport = messageScroll.getViewport();
+            int y = viewport.getViewPosition().y + topShift * messageList.getFixedCellHeight();
+            viewport.setViewPosition(new Point(0, Math.max(0, y)));
+        }
+    }
+
+    /** Sends a command line, as a version 2 frame once that has been negotiated. */
+    private void send(String command) {
+        if (!binaryProtocol) {
+            sendRaw(command);
+            return;
+        }
+        byte[] frame = WireProtocol.encodeCommand(command);
+        if (frame != null) write(frame);
+    }
+
+    private void sendRaw(String line) {
+        write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(byte[] bytes) {
+        OutputStream out = output;
+        if (out == null) return; // disconnected; the reconnect brings back anything we missed, but not what we sent
+        synchronized (sendLock) {
+            try {
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+                appendSystemMessage("Error sending message: " + e.getMessage());
+            }
+        }
+    }
+
+    private void sendMessage() {
+        String message = textField.getText().trim();
+        if (!message.isEmpty()) {
+            send(message);
+            if (message.startsWith("/search ")) searchQuery = message.substring(8).replaceAll("\\s*cursor:\\S+", "");
+            textField.setText("");
+            send("/stoptyping");
+            typingSentAt = 0;
+        }
+    }
+
+    private void sendFile() {
+        JFileChooser fileChooser = new JFileChooser();
+        if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File file = fileChooser.getSelectedFile();
+            pendingUploads.put(file.getName(), file);
+            send("/file " + file.length() + " " + file.getName());
+        }
+    }
+
+    private void startUpload(String token, String port, String fileName) {
+        File file = pendingUploads.remove(fileName);
+        if (file != null) new Thread(() -> uploadFile(file, token, Integer.parseInt(port)), "upload").start();
+    }
+
+    /** Streams a file to the side channel in checksummed chunks, resuming where the server left off after a failure. */
+    private void uploadFile(File file, String token, int port) {
+        appendSystemMessage("Uploading " + file.getName() + "...");
+        for (int attempt = 1; attempt <= 5; attempt++) {
+            try (Socket side = new Socket(socket.getInetAddress(), port);
+                 RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(side.getOutputStream()));
+                InputStream reply = side.getInputStream();
+                out.write(("PUT " + token + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                String offset = readSideLine(reply);
+                if (!offset.startsWith("OFFSET ")) throw new IOException(offset);
+                in.seek(Long.parseLong(offset.substring(7)));
+                byte[] chunk = new byte[WireProtocol.FILE_CHUNK_SIZE];
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                int read;
+                while ((read = in.read(chunk)) > 0) {
+                    crc.reset();
+                    crc.update(chunk, 0, read);
+                    out.writeInt(read);
+                    out.writeInt((int) crc.getValue());
+                    out.write(chunk, 0, read);
+                }
+                out.flush();
+                String result = readSideLine(reply);
+                if (result.equals("DONE")) return;
+                appendSystemMessage("Upload of " + file.getName() + " interrupted: " + result);
+            } catch (IOException | NumberFormatException e) {
+                appendSystemMessage("Upload of " + file.getName() + " interrupted: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(1000L * attempt);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        appendSystemMessage("Upload of " + file.getName() + " failed");
+    }
+
+    private void requestDownload(String fileId) {
+        JFileChooser fileChooser = new JFileChooser();
+        if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            pendingDownloads.put(fileId, fileChooser.getSelectedFile());
+            send("/download " + fileId);
+        }
+    }
+
+    private void startDownload(String fileId, String token, String port) {
+        File target = pendingDownloads.remove(fileId);
+        if (target != null) new Thread(() -> downloadFile(target, token, Integer.parseInt(port)), "download").start();
+    }
+
+    /** Fetches a file from the side channel, checking every chunk and resuming from the first bad or missing one. */
+    private void downloadFile(File target, String token, int port) {
+        long position = 0;
+        for (int attempt = 1; attempt <= 5; attempt++) {
+            try (Socket side = new Socket(socket.getInetAddress(), port);
+                 RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+                side.getOutputStream().write(("GET " + token + " " + position + "\n").getBytes(StandardCharsets.US_ASCII));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(side.getInputStream()));
+                String[] ok = readSideLine(in).split(" ");
+                if (!ok[0].equals("OK") || ok.length != 3) throw new IOException(String.join(" ", ok));
+                long size = Long.parseLong(ok[1]);
+                position = Long.parseLong(ok[2]);
+                out.setLength(Math.max(position, Math.min(out.length(), size)));
+                out.seek(position);
+                byte[] chunk = new byte[WireProtocol.FILE_CHUNK_SIZE];
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                while (position < size) {
+                    int length = (int) Math.min(chunk.length, size - position);
+                    int checksum = in.readInt();
+                    in.readFully(chunk, 0, length);
+                    crc.reset();
+                    crc.update(chunk, 0, length);
+                    if ((int) crc.getValue() != checksum) throw new IOException("checksum mismatch at " + position);
+                    out.write(chunk, 0, length);
+                    position += length;
+                }
+                out.setLength(size);
+                appendSystemMessage("Saved " + target.getName());
+                return;
+            } catch (IOException | NumberFormatException e) {
+                appendSystemMessage("Download of " + target.getName() + " interrupted: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(1000L * attempt);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        appendSystemMessage("Download of " + target.getName() + " failed");
+    }
+
+    private static String readSideLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') line.append((char) b);
+        if (b == -1) throw new IOException("Connection closed");
+        return line.toString();
+    }
+
+    private void showEmojiPicker() {
+        String[] emojis = {"😊", "😂", "😍", "👍", "👎", "❤️"};
+        String selected = (String) JOptionPane.showInputDialog(this, "Pick an emoji:", "Emoji Picker",
+                JOptionPane.PLAIN_MESSAGE, null, emojis, emojis[0]);
+        if (selected != null) textField.setText(textField.getText() + selected);
+    }
+
+    /** The row under a point in the message list, or null. */
+    private MessageListModel.Row rowAt(Point point) {
+        int index = messageList.locationToIndex(point);
+        if (index < 0 || !messageList.getCellBounds(index, index).contains(point)) return null;
+        return messages.getElementAt(index);
+    }
+
+    private void showMessageContextMenu(MessageListModel.Row row, int x, int y) {
+        if (row.kind() != MessageListModel.Kind.MESSAGE || !row.sender().equals(username)) return;
+        String msgId = row.id();
+        JPopupMenu menu = new JPopupMenu();
+        JMenuItem edit = new JMenuItem("Edit");
+        edit.addActionListener(e -> {
+            String newText = JOptionPane.showInputDialog("Edit message:", row.text());
+            if (newText != null) send("/edit " + msgId + " " + newText);
+        });
+        menu.add(edit);
+
+        JMenuItem delete = new JMenuItem("Delete");
+        delete.addActionListener(e -> send("/delete " + msgId));
+        menu.add(delete);
+
+        JMenuItem pin = new JMenuItem("Pin");
+        pin.addActionListener(e -> send("/pin " + msgId));
+        menu.add(pin);
+
+        menu.show(messageList, x, y);
+    }
+
+    /** A {@code USERLIST} snapshot: everyone in the room as of presence {@code version}, or -1 when unversioned. */
+    private void updateUserList(long version, String userString) {
+        presenceVersion = version;
+        userListRequested = false;
+        ui(() -> {
+            java.util.List<String> users = new ArrayList<>();
+            for (String user : userString.split(",")) {
+                if (!user.isEmpty()) users.add(user);
+            }
+            users.forEach(this::assignColor);
+            userListModel.clear();
+            userListModel.addAll(users);
+        });
+    }
+
+    /**
+     * A {@code JOIN} or {@code LEAVE} event. The next version is applied to the list as it stands; one we
+     * already have is ignored, and a gap means an event was lost, so we ask for a new snapshot instead.
+     */
+    private void updatePresence(String version, String user, boolean joined) {
+        long v = Long.parseLong(version);
+        if (v <= presenceVersion) return;
+        if (presenceVersion < 0 || v != presenceVersion + 1) {
+            if (!userListRequested) {
+                userListRequested = true;
+                send("/users");
+            }
+            return;
+        }
+        presenceVersion = v;
+        ui(() -> {
+            if (joined) {
+                assignColor(user);
+                userListModel.addElement(user);
+            } else {
+                userListModel.removeElement(user);
+            }
+        });
+    }
+
+    private void assignColor(String user) {
+        if (!userColors.containsKey(user)) userColors.put(user, new Color((int)(Math.random() * 0x1000000)));
+    }
+
+    /** A live message: shown at the bottom, unless the view has been paged away from the live edge. */
+    private void appendColoredMessage(String msgId, String sender, String timestamp, String text) {
+        newestMsgId = msgId;
+        ui(() -> appendLive(new MessageListModel.Row(MessageListModel.Kind.MESSAGE, msgId, sender, timestamp, text)));
+    }
+
+    private void appendLive(MessageListModel.Row row) {
+        if (!atLiveEdge) {
+            // Messages come back with /newer; anything else would be lost, so hold it until we return
+            if (row.kind() != MessageListModel.Kind.MESSAGE) heldRows.add(row);
+            if (heldRows.size() > VIEW_ROWS) heldRows.remove(0);
+            return;
+        }
+        if (messages.append(row)) {
+            topShift--;
+            moreHistory = true; // what fell off the top can be paged back in
+        }
+    }
+
+    /** Asks for the next page past whichever end of the window the user scrolled to. */
+    private void pageAtEdge(int direction) {
+        JScrollBar bar = messageScroll.getVerticalScrollBar();
+        if (direction <= 0 && bar.getValue() == 0) {
+            requestPage(Paging.OLDER, moreHistory ? messages.firstMessageId() : null);
+        } else if (direction >= 0 && bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() && !atLiveEdge) {
+            requestPage(Paging.NEWER, messages.lastMessageId());
+        }
+    }
+
+    private void requestPage(Paging direction, String msgId) {
+        if (msgId == null || paging != Paging.NONE) return;
+        paging = direction;
+        send((direction == Paging.OLDER ? "/history " : "/newer ") + msgId);
+    }
+
+    private void addPageRow(String msgId, String sender, String timestamp, String text) {
+        ui(() -> pageRows.add(new MessageListModel.Row(MessageListModel.Kind.MESSAGE, msgId, sender, timestamp, text)));
+    }
+
+    /**
+     * Puts the page of {@code HISTORY} messages just received above the window for {@code /history}, or below it
+     * for {@code /newer}. Room for older messages is made by evicting the newest ones, which leaves the view
+     * detached from the live edge until {@code /newer} has caught up again.
+     */
+    private void endPage(boolean more) {
+        ui(() -> {
+            if (paging == Paging.OLDER) {
+                int evicted = messages.prepend(pageRows);
+                topShift += pageRows.size();
+                moreHistory = more;
+                if (evicted > 0) atLiveEdge = false;
+            } else if (paging == Paging.NEWER) {
+                for (MessageListModel.Row row : pageRows) {
+                    if (messages.append(row)) {
+                        topShift--;
+                        moreHistory = true;
+                    }
+                }
+                if (!more) {
+                    atLiveEdge = true;
+                    heldRows.forEach(this::appendLive);
+                    heldRows.clear();
+                }
+            }
+            pageRows.clear();
+            paging = Paging.NONE;
+        });
+    }
+
+    /**
+     * The server moved us into {@code room}: its history and pins replace what is shown. After a reconnect
+     * that landed us back in the same room, the view is kept and the missed messages follow; if we landed
+     * somewhere else (the server could not resume us), we ask to go back.
+     */
+    private void enterRoom(String room) {
+        String previous = this.room;
+        String rejoin = rejoinRoom;
+        rejoinRoom = null;
+        this.room = room;
+        presenceVersion = -1; // the room's user list snapshot follows
+        userListRequested = false;
+        if (rejoin != null && !rejoin.equals(room)) send("/join " + rejoin);
+        if (room.equals(previous)) return;
+        newestMsgId = null;
+        ui(() -> {
+            clearMessages();
+            pinnedArea.setText("");
+            typingLabel.setText(" ");
+            setTitle("Chat - " + username + " #" + room);
+        });
+    }
+
+    /** Empties the view, e.g. when the server says it could not fill the gap since the last message we saw. */
+    private void clearMessages() {
+        topShift -= messages.getSize();
+        messages.clear();
+        heldRows.clear();
+        moreHistory = true;
+        atLiveEdge = true;
+    }
+
+    private void appendPrivateMessage(String seq, String sender, String receiver, String timestamp, String encryptedText) {
+        String text = decryptMessage(encryptedText);
+        boolean own = sender.equals(username);
+        String id = "pm:" + seq;
+        ui(() -> {
+            if (own || textField.getText().startsWith("/pm " + sender)) {
+                appendLive(new MessageListModel.Row(MessageListModel.Kind.PRIVATE, id, sender, timestamp, text));
+                if (own) {
+                    Deque<String> unread = unreadByThem.computeIfAbsent(receiver, r -> new ArrayDeque<>());
+                    unread.addLast(seq);
+                    if (unread.size() > VIEW_ROWS) unread.removeFirst(); // scrolled out of the view anyway
+                } else {
+                    readUpTo.merge(sender, Long.parseLong(seq), Math::max);
+                    receiptTimer.restart();
+                }
+            }
+        });
+    }
+
+    /** Tells the server how far each conversation has been read, once PMs stop arriving; only watermarks that moved are sent. */
+    private void sendReadReceipts() {
+        if (!isFocused()) return; // sent when the window is focused again
+        readUpTo.forEach((other, seq) -> {
+            if (seq > reportedUpTo.getOrDefault(other, 0L)) {
+                send("/read " + other + " " + seq);
+                reportedUpTo.put(other, seq);
+            }
+        });
+    }
+
+    /** {@code reader} has read our PMs to them up to {@code seq}: ticks off those still in the view. */
+    private void markRead(String reader, String seq) {
+        long upTo = Long.parseLong(seq);
+        ui(() -> {
+            Deque<String> unread = unreadByThem.getOrDefault(reader, new ArrayDeque<>());
+            while (!unread.isEmpty() && Long.parseLong(unread.peekFirst()) <= upTo) {
+                String id = "pm:" + unread.removeFirst();
+                MessageListModel.Row row = messages.get(id);
+                if (row != null) messages.replace(id, new MessageListModel.Row(MessageListModel.Kind.RECEIPT, id, row.sender(), row.timestamp(), row.text()));
+            }
+        });
+    }
+
+    /** Safe to call from any thread. */
+    private void appendSystemMessage(String message) {
+        ui(() -> appendLive(new MessageListModel.Row(MessageListModel.Kind.SYSTEM, null, null, null, message)));
+    }
+
+    /** One /search match, shown as a system row so it does not mix with the live conversation. */
+    private void addSearchResult(String msgId, String sender, String timestamp, String text) {
+        lastSearchResultId = msgId;
+        appendSystemMessage("Found: " + sender + " [" + timestamp + "]: " + text);
+    }
+
+    private void endSearch(boolean more) {
+        appendSystemMessage(more ? "More matches: /search " + searchQuery + " cursor:" + lastSearchResultId : "No more matches");
+    }
+
+    private void appendFileMessage(String fileId, String sender, String timestamp, String fileName) {
+        ui(() -> appendLive(new MessageListModel.Row(MessageListModel.Kind.FILE, fileId, sender, timestamp, fileName)));
+    }
+
+    private void updateEditedMessage(String msgId, String sender, String timestamp, String text) {
+        ui(() -> messages.replace(msgId, new MessageListModel.Row(MessageListModel.Kind.MESSAGE, msgId, sender, timestamp, text)));
+    }
+
+    /** Leaves a tombstone, so rows keep their places and the id can still anchor /history and /newer. */
+    private void deleteMessage(String msgId) {
+        ui(() -> {
+            MessageListModel.Row row = messages.get(msgId);
+            if (row != null) messages.replace(msgId, new MessageListModel.Row(MessageListModel.Kind.DELETED, msgId, row.sender(), row.timestamp(), null));
+        });
+    }
+
+    private void pinMessage(String msgId, String sender, String timestamp, String text) {
+        ui(() -> {
+            StyledDocument doc = pinnedArea.getStyledDocument();
+            SimpleAttributeSet attrs = new SimpleAttributeSet();
+            StyleConstants.setForeground(attrs, userColors.getOrDefault(sender, Color.BLACK));
+
+            try {
+                doc.insertString(doc.getLength(), "[" + timestamp + "] " + sender + ": " + text + "\n", attrs);
+            } catch (BadLocationException e) {
+                System.err.println("Error pinning message: " + e.getMessage());
+            }
+        });
+    }
+
+    private void updateTypingStatus(String typingUsers) {
+        latestTyping.set(typingUsers);
+        scheduleFlush();
+    }
+
+    /** Draws one row of the message list in the style of its kind. */
+    private class MessageRenderer extends DefaultListCellRenderer {
+        private Font italic;
+        private Font underlined;
+
+        MessageRenderer() {
+            putClientProperty("html.disable", Boolean.TRUE); // message text is never markup
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focused) {
+            MessageListModel.Row row = (MessageListModel.Row) value;
+            String text = (switch (row.kind()) {
+                case MESSAGE -> "[" + row.timestamp() + "] " + row.sender() + ": " + row.text();
+                case DELETED -> "[" + row.timestamp() + "] " + row.sender() + ": message deleted";
+                case PRIVATE -> "[" + row.timestamp() + "] PM from " + row.sender() + ": " + row.text();
+                case FILE -> "[" + row.timestamp() + "] " + row.sender() + " sent file: " + row.text() + " (double-click to save)";
+                case SYSTEM -> row.text();
+                case RECEIPT -> "[" + row.timestamp() + "] PM from " + row.sender() + ": " + row.text() + " ✓ read";
+            }).replace('\n', '⏎'); // one line per row; the tooltip shows rows too long for the view
+            super.getListCellRendererComponent(list, text, index, selected, focused);
+            setToolTipText(text);
+            if (italic == null) {
+                italic = list.getFont().deriveFont(Font.ITALIC);
+                underlined = list.getFont().deriveFont(Map.of(java.awt.font.TextAttribute.UNDERLINE, java.awt.font.TextAttribute.UNDERLINE_ON));
+            }
+            setFont(switch (row.kind()) {
+                case PRIVATE, RECEIPT, DELETED -> italic;
+                case FILE -> underlined;
+                default -> list.getFont();
+            });
+            if (!selected) {
+                setForeground(switch (row.kind()) {
+                    case SYSTEM, DELETED -> Color.GRAY;
+                    case RECEIPT -> Color.GREEN;
+                    default -> userColors.getOrDefault(row.sender(), Color.BLACK);
+                });
+            }
+            return this;
+        }
+    }
+
+    private String decryptMessage(String encryptedText) {
+        try {
+            return cipher.decrypt(encryptedText);
+        } catch (java.security.GeneralSecurityException e) {
+            System.err.println("Error decrypting message: " + e.getMessage());
+            return encryptedText;
+        }
+    }
+
+    private void applyTheme() {
+        String theme = (String) themeCombo.getSelectedItem();
+        switch (theme) {
+            case "Light" -> {
+                getContentPane().setBackground(Color.WHITE);
+                messageList.setBackground(Color.WHITE);
+                pinnedArea.setBackground(Color.LIGHT_GRAY);
+            }
+            case "Dark" -> {
+                getContentPane().setBackground(Color.DARK_GRAY);
+                messageList.setBackground(Color.DARK_GRAY);
+                pinnedArea.setBackground(Color.GRAY);
+                messageList.setForeground(Color.WHITE);
+                pinnedArea.setForeground(Color.WHITE);
+            }
+            case "Blue" -> {
+                getContentPane().setBackground(new Color(173, 216, 230));
+                messageList.setBackground(new Color(173, 216, 230));
+                pinnedArea.setBackground(new Color(135, 206, 235));
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        SwingUtilities.invokeLater(() -> {
+            ChatClient client = new ChatClient();
+            client.setVisible(true);
+        });
+    }
+}
\ No newline at end of file
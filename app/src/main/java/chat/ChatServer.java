@@ -0,0 +1,221 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ChatServer {
+    private static final int PORT = 12345;
+    static final Map<String, ChatSession> sessions = new ConcurrentHashMap<>(); // Every logged-in user, whatever room they are in
+    static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    static final ReadReceipts readReceipts = new ReadReceipts();
+    static final Map<String, ChatSession> resumeTokens = new ConcurrentHashMap<>(); // Live sessions, and closed ones still within --resume-grace-s
+    static MessageLog messageLog; // null when persistence is off
+    static volatile FileTransferServer fileTransfers; // set after the ticker starts
+    static Cluster cluster; // null when running alone
+    private static final Map<String, String> options = new HashMap<>();
+
+    public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] kv = arg.substring(2).split("=", 2);
+                options.put(kv[0], kv.length == 2 ? kv[1] : "true");
+            }
+        }
+        String engine = option("engine", "thread");
+        int port = intOption("port", PORT);
+
+        try {
+            messageLog = MessageLog.fromOptions();
+            if (messageLog != null) {
+                long start = System.nanoTime();
+                long records = messageLog.replay(ChatServer::room);
+                int messages = 0;
+                int pins = 0;
+                for (Room room : rooms.values()) {
+                    messages += room.history.size();
+                    pins += room.pins.size();
+                }
+                System.out.println("Restored " + messages + " messages and " + pins + " pins in " + rooms.size() + " rooms from "
+                        + records + " log records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                messageLog.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close));
+            }
+            cluster = Cluster.fromOptions();
+            if (cluster != null) cluster.start();
+            TypingAggregator.startTicker(intOption("typing-tick-ms", 250), () -> {
+                for (Room room : rooms.values()) {
+                    tickStep("typing in #" + room.name, room.typing::tick);
+                    tickStep("queued changes in #" + room.name, room::applySubmitted);
+                    if (cluster == null) tickStep("reclaiming #" + room.name, () -> {
+                        if (room.reclaimIfIdle()) rooms.remove(room.name, room);
+                    });
+                }
+                tickStep("read receipts", readReceipts::tick);
+                if (fileTransfers != null) tickStep("file transfers", fileTransfers::tick);
+            });
+            ServerMetrics.start(intOption("stats-port", 0));
+            fileTransfers = FileTransferServer.fromOptions(port);
+            Thread transfers = new Thread(fileTransfers, "file-transfer-acceptor");
+            transfers.setDaemon(true);
+            transfers.start();
+            System.out.println("Chat Server is running (" + engine + " engine)...");
+            if (engine.equals("nio")) {
+                int loops = intOption("event-loops", Runtime.getRuntime().availableProcessors());
+                new NioChatServer(port, loops).run();
+            } else {
+                Executor executor = engine.equals("virtual") ? virtualThreadExecutor() : task -> new Thread(task).start();
+                try (ServerSocket serverSocket = new ServerSocket(port)) {
+                    while (true) {
+                        executor.execute(new ClientHandler(serverSocket.accept(), executor));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error in the server: " + e.getMessage());
+        }
+    }
+
+    /** Runs one step of the ticker, so a step that throws is reported and the others still run. */
+    private static void tickStep(String what, Runnable step) {
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            System.out.println("Ticker failed at " + what + ": " + e);
+        }
+    }
+
+    static String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    static int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid --" + name + "=" + value);
+            return defaultValue;
+        }
+    }
+
+    /** Executors.newVirtualThreadPerTaskExecutor() when running on Java 21+, platform threads otherwise. */
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads require Java 21+, falling back to platform threads");
+            return task -> new Thread(task).start();
+        }
+    }
+
+    /** Output compression for one connection, as set by {@code --deflate-level} and {@code --deflate-min-bytes}. */
+    static WireProtocol.Compressor compressor() {
+        return new WireProtocol.Compressor(intOption("deflate-level", 1), intOption("deflate-min-bytes", 256));
+    }
+
+    /** The room called {@code name}, created empty on first use. */
+    static Room room(String name) {
+        return rooms.computeIfAbsent(name, n -> new Room(n, intOption("history-size", 100)));
+    }
+
+    /** The room called {@code name} with its lock held, never one the ticker has just reclaimed. */
+    static Room lockRoom(String name) {
+        while (true) {
+            Room room = room(name);
+            room.lock.lock();
+            if (!room.isReclaimed()) return room;
+            room.lock.unlock();
+        }
+    }
+
+    private static class ClientHandler implements Runnable {
+        private final Socket socket;
+        private final Executor executor;
+
+        public ClientHandler(Socket socket, Executor executor) {
+            this.socket = socket;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            ChatSession session = null;
+            OutboundQueue queue = OutboundQueue.fromOptions(() -> { }, this::closeSocket);
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                executor.execute(() -> drain(queue, out));
+                session = new ChatSession(queue);
+                session.start();
+
+                byte[] buffer = new byte[8192];
+                int read;
+                while (!session.isClosed() && (read = in.read(buffer)) != -1) {
+                    session.receive(ByteBuffer.wrap(buffer, 0, read));
+                    long pause = session.readDelayNanos();
+                    if (pause > 0) TimeUnit.NANOSECONDS.sleep(pause); // unread input backs up into the client's TCP window
+                }
+            } catch (IOException e) {
+                System.out.println("Error handling client: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (session != null) session.close();
+                queue.close();
+                closeSocket();
+            }
+        }
+
+        /** Writer side of the connection: the only place that blocks on this client's socket. */
+        private void drain(OutboundQueue queue, OutputStream out) {
+            WireProtocol.Compressor compressor = null;
+            try {
+                boolean binary = false;
+                OutboundMessage message;
+                while ((message = queue.take()) != null) {
+                    if (message == OutboundMessage.SWITCH_TO_BINARY) {
+                        binary = true;
+                        continue;
+                    }
+                    if (message == OutboundMessage.SWITCH_TO_DEFLATE) {
+                        compressor = compressor();
+                        continue;
+                    }
+                    if (compressor == null) {
+                        out.write(message.bytes(binary));
+                    } else {
+                        compressor.write(message.bytes(binary));
+                        if (queue.isEmpty() || compressor.pending() >= WireProtocol.MAX_FRAME_LENGTH) {
+                            ByteBuffer chunk = compressor.flush();
+                            out.write(chunk.array(), 0, chunk.limit());
+                        }
+                    }
+                    if (queue.isEmpty()) out.flush(); // coalesce queued lines into one write
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing to client: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (compressor != null) compressor.close();
+                closeSocket();
+            }
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+}
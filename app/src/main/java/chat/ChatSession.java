@@ -0,0 +1,560 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Protocol state for one connected client, independent of how its socket is driven.
+ * The thread-per-connection {@code ClientHandler} and the selector-based {@link NioChatServer}
+ * both feed it the raw inbound bytes, so the two engines speak exactly the same protocol.
+ *
+ * <p>A logged-in session is also its user's entry in {@link ChatServer#sessions}: private messages
+ * find the recipient's queue and cipher there without taking any lock. In a {@link Cluster} a name
+ * logged in on another node is taken there too, and PMs to it are handed to that node; a new login waits
+ * in {@code AWAIT_CLAIM} until the node that owns the name has agreed to it.
+ */
+class ChatSession implements WireProtocol.Decoder.Handler {
+    private enum State { AWAIT_USERNAME, AWAIT_CLAIM, AWAIT_KEY, READY, CLOSED }
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static volatile CachedTimestamp cachedTimestamp = new CachedTimestamp(-1, "");
+    private static final int SYNC_PAGE_SIZE = Math.max(1, ChatServer.intOption("sync-page-size", 100));
+    private static final int SEARCH_PAGE_SIZE = Math.max(1, ChatServer.intOption("search-page-size", 20));
+    private static final long RESUME_GRACE_NANOS = TimeUnit.SECONDS.toNanos(ChatServer.intOption("resume-grace-s", 120));
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final boolean DEFLATE = Boolean.parseBoolean(ChatServer.option("deflate", "true"));
+    static final int MAX_ROOMS = ChatServer.intOption("max-rooms", 1000);
+
+    private final OutboundQueue out;
+    private final WireProtocol.Decoder decoder = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+    private final ReentrantLock handling = new ReentrantLock(); // input, and the cluster's answer to a name claim
+    private RateLimiter limiter = new RateLimiter();
+    private boolean floodWarned;
+    private volatile State state = State.AWAIT_USERNAME;
+    private volatile long closedAt;
+    private String username;
+    private volatile MessageCipher cipher; // set once the key arrives; other sessions read it to seal PMs
+    private volatile Room room; // the room this session is in once READY; read by a session resuming it
+
+    /** This session's outbound queue, for {@link ServerMetrics} and {@link ReadReceipts}. */
+    OutboundQueue outbound() {
+        return out;
+    }
+
+    ChatSession(OutboundQueue out) {
+        this.out = out;
+    }
+
+    void start() {
+        out.send("SUBMIT_USERNAME");
+    }
+
+    boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /** Feeds bytes read from the socket; complete lines or frames are handled before this returns. */
+    void receive(ByteBuffer bytes) throws IOException {
+        handling.lock();
+        try {
+            decoder.decode(bytes, this);
+        } finally {
+            handling.unlock();
+        }
+    }
+
+    /** How long the engine should wait before reading more from this client, which has been sending too fast. */
+    long readDelayNanos() {
+        return limiter.readDelayNanos();
+    }
+
+    @Override
+    public void onLine(String message) {
+        switch (state) {
+            case AWAIT_USERNAME -> {
+                if (message.startsWith(WireProtocol.RESUME)) {
+                    resume(KeyReply.parse(message.substring(WireProtocol.RESUME.length())));
+                } else if (ChatServer.sessions.putIfAbsent(message, this) == null) {
+                    username = message;
+                    claimName(() -> {
+                        state = State.AWAIT_KEY;
+                        out.send("SUBMIT_KEY");
+                    });
+                } else {
+                    out.send("SUBMIT_USERNAME");
+                }
+            }
+            case AWAIT_KEY -> {
+                KeyReply reply = KeyReply.parse(message);
+                cipher = new MessageCipher(reply.value()); // Simplified key exchange
+                accept(reply);
+                enterRoom(Room.LOBBY, reply.since(), username + " has joined the chat");
+            }
+            case READY -> handleCommand(message);
+            case AWAIT_CLAIM, CLOSED -> { }
+        }
+    }
+
+    /**
+     * A key or resume reply: the value, then optionally {@link WireProtocol#REQUEST}, {@link WireProtocol#COMPRESS}
+     * and {@link WireProtocol#SINCE}.
+     */
+    private record KeyReply(String value, String since, boolean binary, boolean compress) {
+        static KeyReply parse(String message) {
+            String since = null;
+            int sinceAt = message.indexOf(WireProtocol.SINCE);
+            if (sinceAt >= 0) {
+                since = message.substring(sinceAt + WireProtocol.SINCE.length());
+                message = message.substring(0, sinceAt);
+            }
+            boolean compress = message.endsWith(WireProtocol.COMPRESS);
+            if (compress) message = message.substring(0, message.length() - WireProtocol.COMPRESS.length());
+            boolean binary = message.endsWith(WireProtocol.REQUEST);
+            if (binary) message = message.substring(0, message.length() - WireProtocol.REQUEST.length());
+            return new KeyReply(message, since, binary, compress);
+        }
+    }
+
+    /**
+     * Completes the handshake: confirms it in the requested protocol, with compression if the client asked
+     * and {@code --deflate} allows, and hands out a resume token.
+     */
+    private void accept(KeyReply reply) {
+        state = State.READY;
+        boolean compress = reply.compress() && DEFLATE;
+        String suffix = compress ? WireProtocol.COMPRESS : "";
+        if (reply.binary()) {
+            out.send(WireProtocol.ACCEPTED + suffix);
+            out.send(OutboundMessage.SWITCH_TO_BINARY);
+            decoder.switchToBinary();
+        } else {
+            out.send("USERNAME_ACCEPTED" + suffix);
+        }
+        if (compress) out.send(OutboundMessage.SWITCH_TO_DEFLATE);
+        long now = System.nanoTime();
+        ChatServer.resumeTokens.values().removeIf(session -> !session.isResumable(now));
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        ChatServer.resumeTokens.put(token, this);
+        out.send(OutboundMessage.event(WireProtocol.SESSION, token));
+    }
+
+    /**
+     * Takes over the username, key and room of the session that was given {@code reply}'s token. If that
+     * session's connection is still registered (the server has not noticed it is dead) it is dropped
+     * quietly; otherwise the user rejoins as if logging in. Each token works once: the resumed session
+     * gets a new one.
+     */
+    private void resume(KeyReply reply) {
+        ChatSession previous = ChatServer.resumeTokens.remove(reply.value());
+        if (previous == null || !previous.isResumable(System.nanoTime())) {
+            out.send("SUBMIT_USERNAME");
+            return;
+        }
+        boolean replaced = ChatServer.sessions.replace(previous.username, previous, this);
+        if (!replaced && ChatServer.sessions.putIfAbsent(previous.username, this) != null) {
+            out.send("SUBMIT_USERNAME"); // someone else has taken the name meanwhile
+            return;
+        }
+        username = previous.username;
+        cipher = previous.cipher;
+        limiter = previous.limiter; // reconnecting does not refill the buckets
+        Room previousRoom = previous.room;
+        String roomName = previousRoom != null ? previousRoom.name : Room.LOBBY;
+        if (replaced) {
+            previous.out.disconnect();
+            accept(reply);
+            enterRoom(roomName, reply.since(), null);
+        } else {
+            claimName(() -> {
+                accept(reply);
+                enterRoom(roomName, reply.since(), username + " has rejoined the chat");
+            });
+        }
+    }
+
+    /**
+     * Runs {@code granted} once the cluster agrees that this session, which already holds {@link #username} in
+     * {@link ChatServer#sessions}, may use it; if a user on another node has it, asks for another name instead.
+     * Input that arrives meanwhile is ignored.
+     */
+    private void claimName(Runnable granted) {
+        if (ChatServer.cluster == null) {
+            granted.run();
+            return;
+        }
+        state = State.AWAIT_CLAIM;
+        String name = username;
+        ChatServer.cluster.claim(name, ok -> {
+            handling.lock();
+            try {
+                if (state != State.AWAIT_CLAIM) {
+                    if (ok && !ChatServer.sessions.containsKey(name)) announce(name, false); // closed while waiting
+                } else if (ok) {
+                    announce(name, true);
+                    granted.run();
+                } else {
+                    ChatServer.sessions.remove(name, this);
+                    username = null;
+                    state = State.AWAIT_USERNAME;
+                    out.send("SUBMIT_USERNAME");
+                }
+            } finally {
+                handling.unlock();
+            }
+        });
+    }
+
+    private boolean isResumable(long now) {
+        return state != State.CLOSED || now - closedAt < RESUME_GRACE_NANOS;
+    }
+
+    void close() {
+        handling.lock();
+        try {
+            if (state == State.CLOSED) return;
+            boolean claiming = state == State.AWAIT_CLAIM;
+            closedAt = System.nanoTime();
+            state = State.CLOSED;
+            if (username != null) {
+                if (ChatServer.sessions.remove(username, this)) {
+                    if (!claiming) announce(username, false); // else the claim's answer releases the name
+                    if (room != null) leaveRoom(username + " has left the chat");
+                } else if (room != null) {
+                    room.removeMember(username, out); // resumed on another connection, which has taken our place
+                }
+            }
+        } finally {
+            handling.unlock();
+        }
+    }
+
+    private static void announce(String username, boolean online) {
+        if (ChatServer.cluster != null) ChatServer.cluster.userOnline(username, online);
+    }
+
+    /**
+     * Moves this session into the room called {@code name}: leaves the current room, confirms the move with a
+     * {@code ROOM} event, then sends the room's history page, pins and user list and announces the arrival.
+     * Members are added under the room's lock together with the history page and the user list snapshot,
+     * so no message or presence change falls in between.
+     */
+    private void enterRoom(String name, String sinceId, String notice) {
+        if (room != null) leaveRoom(username + " has left #" + room.name);
+        Room target = ChatServer.lockRoom(name);
+        room = target;
+        out.send(OutboundMessage.event(WireProtocol.ROOM, target.name));
+        try {
+            target.addMember(username, out);
+            syncHistory(sinceId);
+            target.pins.values().forEach(out::send);
+            out.send(target.userList(out.isBinary()));
+            if (notice != null) target.submit(OutboundMessage.of(notice));
+        } finally {
+            target.lock.unlock();
+        }
+    }
+
+    private void leaveRoom(String notice) {
+        room.removeMember(username, out);
+        room.typing.stopped(username);
+        room.submit(OutboundMessage.of(notice));
+    }
+
+    /** Sends a fresh snapshot to a client that missed a presence change. */
+    private void sendUserList() {
+        room.lock.lock();
+        try {
+            out.send(room.userList(out.isBinary()));
+        } finally {
+            room.lock.unlock();
+        }
+    }
+
+    private void joinRoom(String name) {
+        if (!Room.isValidName(name)) {
+            out.send("Room names are 1-32 letters, digits, '-' or '_'");
+        } else if (!name.equals(room.name)) {
+            if (!ChatServer.rooms.containsKey(name) && ChatServer.rooms.size() >= MAX_ROOMS) {
+                out.send("No more rooms can be created right now");
+                return;
+            }
+            enterRoom(name, null, username + " has joined #" + name);
+        }
+    }
+
+    @Override
+    public void onFrame(WireProtocol.Frame frame) {
+        if (state != State.READY || !admit(frame.type())) return;
+        switch (frame.type()) {
+            case WireProtocol.SAY -> postMessage(frame.field(0));
+            case WireProtocol.SEND_PM -> sendPrivateMessage(username, frame.field(0), frame.field(1));
+            case WireProtocol.SEND_FILE -> handleFileTransfer(username, frame.field(0), frame.field(1));
+            case WireProtocol.START_TYPING -> room.typing.typing(username);
+            case WireProtocol.STOP_TYPING -> room.typing.stopped(username);
+            case WireProtocol.SEND_READ -> readUpTo(frame.field(0), frame.field(1));
+            case WireProtocol.EDIT_MESSAGE -> editMessage(username, frame.field(0), frame.field(1));
+            case WireProtocol.DELETE_MESSAGE -> deleteMessage(username, frame.field(0));
+            case WireProtocol.PIN_MESSAGE -> pinMessage(username, frame.field(0));
+            case WireProtocol.REQUEST_HISTORY -> sendOlderMessages(frame.field(0));
+            case WireProtocol.REQUEST_NEWER -> sendNewerMessages(frame.field(0));
+            case WireProtocol.DOWNLOAD_FILE -> handleDownload(username, frame.field(0));
+            case WireProtocol.JOIN_ROOM -> joinRoom(frame.field(0));
+            case WireProtocol.LEAVE_ROOM -> joinRoom(Room.LOBBY);
+            case WireProtocol.REQUEST_USERLIST -> sendUserList();
+            case WireProtocol.SEARCH -> searchHistory(frame.field(0));
+            default -> { }
+        }
+    }
+
+    /** Counts a command and runs it past the rate limiter; false if it is to be ignored. */
+    private boolean admit(byte type) {
+        ServerMetrics.commandIn(type);
+        switch (limiter.admit(type)) {
+            case ALLOW, DELAY -> {
+                floodWarned = false;
+                return true;
+            }
+            case DROP -> {
+                if (!floodWarned) out.send("You are sending too fast; messages are being dropped");
+                floodWarned = true;
+                return false;
+            }
+            default -> {
+                System.out.println("Disconnecting " + username + " for flooding");
+                out.disconnect();
+                close();
+                return false;
+            }
+        }
+    }
+
+    private void handleCommand(String message) {
+        if (!admit(WireProtocol.commandType(message))) return;
+        if (message.startsWith("/pm ")) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length == 3) sendPrivateMessage(username, parts[1], parts[2]);
+        } else if (message.startsWith("/file ")) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length == 3) handleFileTransfer(username, parts[1], parts[2]);
+        } else if (message.equals("/typing")) {
+            room.typing.typing(username);
+        } else if (message.equals("/stoptyping")) {
+            room.typing.stopped(username);
+        } else if (message.startsWith("/read ")) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length == 3) readUpTo(parts[1], parts[2]);
+        } else if (message.startsWith("/edit ")) {
+            String[] parts = message.split(" ", 3);
+            if (parts.length == 3) editMessage(username, parts[1], parts[2]);
+        } else if (message.startsWith("/delete ")) {
+            String[] parts = message.split(" ", 2);
+            if (parts.length == 2) deleteMessage(username, parts[1]);
+        } else if (message.startsWith("/pin ")) {
+            String[] parts = message.split(" ", 2);
+            if (parts.length == 2) pinMessage(username, parts[1]);
+        } else if (message.startsWith("/history ")) {
+            sendOlderMessages(message.substring(9));
+        } else if (message.startsWith("/newer ")) {
+            sendNewerMessages(message.substring(7));
+        } else if (message.startsWith("/download ")) {
+            handleDownload(username, message.substring(10));
+        } else if (message.startsWith("/join ")) {
+            joinRoom(message.substring(6));
+        } else if (message.equals("/leave")) {
+            joinRoom(Room.LOBBY);
+        } else if (message.equals("/users")) {
+            sendUserList();
+        } else if (message.startsWith("/search ")) {
+            searchHistory(message.substring(8));
+        } else {
+            postMessage(message);
+        }
+    }
+
+    private void postMessage(String message) {
+        String msgId = UUID.randomUUID().toString();
+        OutboundMessage formattedMessage = OutboundMessage.event(WireProtocol.MSG, msgId, username, getTimestamp(), message);
+        submit(formattedMessage);
+    }
+
+    /** Hands a change to the room, telling the user if the node that owns it is unreachable. */
+    private void submit(OutboundMessage change) {
+        if (!room.submit(change)) out.send("#" + room.name + " is unavailable while its server is down");
+    }
+
+    /**
+     * Sends a joining client the messages it has not seen: everything after {@code sinceId} if that fits
+     * in one page, otherwise (or for a client without history) just the newest page, announced as a
+     * {@code reset} so a reconnecting client drops its stale view. Older pages are fetched with
+     * {@code /history}. The caller holds the room's lock so live messages cannot overtake the page;
+     * the lock is held for one page, however large the history is.
+     */
+    private void syncHistory(String sinceId) {
+        List<OutboundMessage> page = new ArrayList<>(SYNC_PAGE_SIZE);
+        long since = sinceId == null ? -1 : room.history.seqOf(sinceId);
+        boolean reset = since < 0 || room.history.after(since, SYNC_PAGE_SIZE, page);
+        if (reset) {
+            page.clear();
+            room.history.before(Long.MAX_VALUE, SYNC_PAGE_SIZE, page);
+        }
+        if (sinceId != null) out.send(OutboundMessage.event(WireProtocol.SYNC, reset ? "reset" : "continue"));
+        page.forEach(out::send);
+    }
+
+    /** Sends the page of messages preceding {@code msgId} as {@code HISTORY} events, then {@code HISTORY_END}. */
+    private void sendOlderMessages(String msgId) {
+        List<OutboundMessage> page = new ArrayList<>(SYNC_PAGE_SIZE);
+        boolean more = false;
+        room.lock.lock();
+        try {
+            long seq = room.history.seqOf(msgId);
+            if (seq >= 0) more = room.history.before(seq, SYNC_PAGE_SIZE, page);
+        } finally {
+            room.lock.unlock();
+        }
+        for (OutboundMessage msg : page) {
+            out.send(OutboundMessage.event(WireProtocol.HISTORY, msg.field(0), msg.field(1), msg.field(2), msg.field(3)));
+        }
+        out.send(OutboundMessage.event(WireProtocol.HISTORY_END, Boolean.toString(more)));
+    }
+
+    /**
+     * Sends the page of messages following {@code msgId}, for a client that dropped the newest part of its
+     * view and scrolled back down. The page and its {@code HISTORY_END} are queued under the room lock, so
+     * a client told {@code false} (nothing newer) can treat every later message as live. If {@code msgId}
+     * has been evicted, {@code SYNC:reset} and the newest page are sent instead.
+     */
+    private void sendNewerMessages(String msgId) {
+        List<OutboundMessage> page = new ArrayList<>(SYNC_PAGE_SIZE);
+        room.lock.lock();
+        try {
+            long seq = room.history.seqOf(msgId);
+            boolean more = seq >= 0 && room.history.after(seq, SYNC_PAGE_SIZE, page);
+            if (seq < 0) {
+                room.history.before(Long.MAX_VALUE, SYNC_PAGE_SIZE, page);
+                out.send(OutboundMessage.event(WireProtocol.SYNC, "reset"));
+            }
+            for (OutboundMessage msg : page) {
+                out.send(OutboundMessage.event(WireProtocol.HISTORY, msg.field(0), msg.field(1), msg.field(2), msg.field(3)));
+            }
+            out.send(OutboundMessage.event(WireProtocol.HISTORY_END, Boolean.toString(more)));
+        } finally {
+            room.lock.unlock();
+        }
+    }
+
+    /**
+     * Answers {@code /search} with one page of matches from the room's history, newest first, as
+     * {@code SEARCH} events and then {@code SEARCH_END}. Only the index lookup holds the room lock;
+     * the results are queued after it is released.
+     */
+    private void searchHistory(String text) {
+        SearchIndex.Query query = SearchIndex.Query.parse(text);
+        if (query.terms().isEmpty()) {
+            out.send("Search for at least one word or from:<user>");
+            return;
+        }
+        List<OutboundMessage> page = new ArrayList<>(SEARCH_PAGE_SIZE);
+        boolean more = false;
+        room.lock.lock();
+        try {
+            long start = System.nanoTime();
+            long before = query.cursor() == null ? Long.MAX_VALUE : room.history.seqOf(query.cursor());
+            if (before >= 0) more = room.history.search(query, before, SEARCH_PAGE_SIZE, page);
+            ServerMetrics.search.record(System.nanoTime() - start);
+        } finally {
+            room.lock.unlock();
+        }
+        for (OutboundMessage msg : page) {
+            out.send(OutboundMessage.event(WireProtocol.SEARCH_RESULT, msg.field(0), msg.field(1), msg.field(2), msg.field(3)));
+        }
+        out.send(OutboundMessage.event(WireProtocol.SEARCH_END, Boolean.toString(more)));
+    }
+
+    private void sendPrivateMessage(String sender, String receiver, String message) {
+        // Each copy is sealed under its reader's own key
+        String timestamp = getTimestamp();
+        String seq = Long.toString(ChatServer.readReceipts.nextSeq());
+        if (deliverPrivateMessage(seq, sender, receiver, timestamp, message)
+                || ChatServer.cluster != null && ChatServer.cluster.sendPrivate(seq, sender, receiver, timestamp, message)) {
+            out.send(OutboundMessage.event(WireProtocol.PM, seq, sender, receiver, timestamp, cipher.encrypt(message)));
+        } else {
+            out.send("User " + receiver + " not found");
+        }
+    }
+
+    /** Seals a PM under the receiver's key and sends it, if they are logged in here; false if not. PMs from other nodes come in here too. */
+    static boolean deliverPrivateMessage(String seq, String sender, String receiver, String timestamp, String message) {
+        ChatSession target = ChatServer.sessions.get(receiver);
+        MessageCipher receiverCipher = target != null ? target.cipher : null;
+        if (receiverCipher == null) return false;
+        long start = System.nanoTime();
+        String forReceiver = receiverCipher.encrypt(message);
+        ServerMetrics.encryption.record(System.nanoTime() - start);
+        target.out.send(OutboundMessage.event(WireProtocol.PM, seq, sender, receiver, timestamp, forReceiver));
+        return true;
+    }
+
+    /** {@code /read <user> <seq>}: this user has read {@code writer}'s PMs up to {@code seq}. */
+    private void readUpTo(String writer, String seq) {
+        try {
+            ChatServer.readReceipts.read(username, writer, Long.parseLong(seq));
+        } catch (NumberFormatException e) {
+            // not a sequence number; ignored
+        }
+    }
+
+    /** Reserves an upload on the file side channel; the room is told about the file once it has arrived. */
+    private void handleFileTransfer(String sender, String size, String fileName) {
+        OutboundMessage upload = null;
+        try {
+            upload = ChatServer.fileTransfers.offerUpload(room, sender, fileName, Long.parseLong(size));
+        } catch (NumberFormatException e) {
+            // falls through to the rejection below
+        }
+        if (upload != null) {
+            out.send(upload);
+        } else {
+            out.send("File " + fileName + " was rejected: size must be between 1 byte and the server limit");
+        }
+    }
+
+    private void handleDownload(String user, String fileId) {
+        OutboundMessage download = ChatServer.fileTransfers.offerDownload(room, user, fileId);
+        out.send(download != null ? download : OutboundMessage.of("File " + fileId + " not found"));
+    }
+
+    private void editMessage(String sender, String msgId, String newText) {
+        submit(OutboundMessage.event(WireProtocol.EDIT, msgId, sender, getTimestamp() + "[Edited]", newText));
+    }
+
+    private void deleteMessage(String sender, String msgId) {
+        submit(OutboundMessage.event(WireProtocol.DELETE, msgId, sender));
+    }
+
+    private void pinMessage(String sender, String msgId) {
+        submit(OutboundMessage.event(WireProtocol.PIN, msgId, sender));
+    }
+
+    /** HH:mm:ss, formatted at most once per second and shared by every session. */
+    static String getTimestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedTimestamp cached = cachedTimestamp;
+        if (cached.second() != second) {
+            cached = new CachedTimestamp(second, TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)));
+            cachedTimestamp = cached;
+        }
+        return cached.text();
+    }
+
+    private record CachedTimestamp(long second, String text) { }
+}
@@ -0,0 +1,710 @@
+package chat;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The backplane between chat servers started with the same {@code --cluster=host:port,...} list, each
+ * naming its own entry with {@code --node}. Every pair of nodes is joined by a TCP link in each direction:
+ * a node writes to its peers over links it opens, and reads what they send over links they open to it.
+ * A node listens only on the address in its own {@code --node} entry, and a link is used only once both
+ * ends have proved they know {@code --cluster-secret}: the listener sends a random challenge, the
+ * connecting node answers with an HMAC of it and a challenge of its own, and the listener answers that.
+ *
+ * <p>Each room is owned by one node, picked from the list by rendezvous hashing so every node agrees
+ * without asking. The owner is the only node that changes the room: others forward their members'
+ * messages, edits, deletes, pins and joins to it, and it publishes every change it commits to all
+ * peers, numbered, while still holding the room's lock. One link carries a room's changes in commit
+ * order, so every node applies them in the owner's order. Users are local to the node they logged in
+ * to; nodes tell each other who is online where, so a PM goes straight to the receiver's node. Who may
+ * log in under a name is decided by the node that owns the name, hashed the same way as rooms.
+ *
+ * <p>Each link has a writer thread with a bounded queue, so a slow peer never blocks a room. A link that
+ * falls behind by {@link #QUEUE_FRAMES} frames is dropped; whenever a link (re)connects its writer first
+ * sends what the peer needs to catch up, straight to the socket ahead of anything queued: the users
+ * online here, a snapshot of every room owned here and the local members of rooms the peer owns. A
+ * snapshot is copied under the room's lock but written after it, in frames of about {@link #CHUNK_BYTES}.
+ * When the link from a peer breaks, its users and its members of rooms owned here are dropped until it
+ * reconnects. Rooms owned by a node that is down cannot be
+ * posted to meanwhile.
+ */
+final class Cluster {
+    private static final byte HELLO = 1;
+    private static final byte FORWARD = 2;
+    private static final byte PRESENCE = 3;
+    private static final byte EVENT = 4;
+    private static final byte SNAPSHOT = 5;
+    private static final byte USER = 6;
+    private static final byte PRIVATE = 7;
+    private static final byte READ = 8;
+    private static final byte SNAPSHOT_PART = 9;
+    private static final byte CLAIM = 10;
+    private static final byte CLAIMED = 11;
+    private static final byte CHALLENGE = 12;
+    private static final byte WELCOME = 13;
+    private static final byte PART_USER = 0;
+    private static final byte PART_MESSAGE = 1;
+    private static final byte PART_PIN = 2;
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final long CLAIM_TIMEOUT_MS = 2000;
+    private static final int QUEUE_FRAMES = 100_000;
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte[] RESET = new byte[0]; // queue marker: drop the link and reconnect
+
+    final String self;
+    private final List<String> nodes;
+    private final SecretKeySpec secret;
+    private final long incarnation = new Random().nextLong(); // tells a restarted peer from a reconnected one
+    private final Map<String, Peer> peers = new HashMap<>(); // every other node
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>(); // node -> current link from it
+    private final Map<String, Long> incarnations = new ConcurrentHashMap<>(); // node -> incarnation last seen
+    private final Map<String, String> owners = new ConcurrentHashMap<>(); // room -> owning node
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>(); // username -> node, for users logged in elsewhere
+    private final Map<String, String> claims = new ConcurrentHashMap<>(); // for names owned here: username -> node it is logged in on
+    private final Map<Long, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+
+    private Cluster(String self, List<String> nodes, String secret) {
+        this.self = self;
+        this.nodes = nodes;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        for (String node : nodes) {
+            if (!node.equals(self)) peers.put(node, new Peer(node));
+        }
+    }
+
+    /** The cluster configured by {@code --cluster}, {@code --node} and {@code --cluster-secret}, or null when this server runs alone. */
+    static Cluster fromOptions() {
+        String list = ChatServer.option("cluster", "");
+        if (list.isEmpty()) return null;
+        List<String> nodes = List.of(list.split(","));
+        String self = ChatServer.option("node", "");
+        if (!nodes.contains(self)) {
+            System.out.println("--node=" + self + " is not one of --cluster=" + list + ", running alone");
+            return null;
+        }
+        String secret = ChatServer.option("cluster-secret", "");
+        if (secret.isEmpty()) {
+            System.out.println("--cluster needs a --cluster-secret shared by every node, running alone");
+            return null;
+        }
+        return new Cluster(self, nodes, secret);
+    }
+
+    /** Listens for peers on this node's cluster address and starts connecting to them. */
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.bind(address(self));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    Thread reader = new Thread(() -> serve(socket), "cluster-reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    System.out.println("Cluster listener stopped: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers.values()) {
+            Thread writer = new Thread(peer, "cluster-writer-" + peer.node);
+            writer.setDaemon(true);
+            writer.start();
+        }
+        System.out.println("Cluster node " + self + " of " + nodes.size());
+    }
+
+    /** Whether this node owns {@code room}. */
+    boolean owns(String room) {
+        return owner(room).equals(self);
+    }
+
+    private String owner(String room) {
+        String owner = owners.get(room);
+        if (owner == null) {
+            owner = pick(room);
+            owners.put(room, owner);
+        }
+        return owner;
+    }
+
+    /** The node that decides who may use {@code username}; not cached, as names come and go. */
+    private String nameOwner(String username) {
+        return pick("@" + username);
+    }
+
+    private String pick(String key) {
+        String owner = null;
+        long best = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long score = mix(key.hashCode() * 0x9E3779B97F4A7C15L + node.hashCode());
+            if (owner == null || score > best) {
+                owner = node;
+                best = score;
+            }
+        }
+        return owner;
+    }
+
+    private static long mix(long z) { // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Hands a member's change to the room's owner; false if the link to it is down. */
+    boolean forward(Room room, OutboundMessage change) {
+        return peers.get(owner(room.name)).send(frame(FORWARD, out -> {
+            writeString(out, room.name);
+            writeEvent(out, change);
+        }));
+    }
+
+    /** Tells the room's owner that a local member entered or left it; the caller holds the room's lock. */
+    void presence(Room room, String username, boolean inRoom) {
+        peers.get(owner(room.name)).send(presenceFrame(room.name, username, inRoom));
+    }
+
+    /** Sends a change the owner has just committed to every peer; the caller holds the room's lock. */
+    void publish(Room room, long change, long seq, OutboundMessage event) {
+        byte[] frame = frame(EVENT, out -> {
+            writeString(out, room.name);
+            out.writeLong(change);
+            out.writeLong(seq);
+            writeEvent(out, event);
+        });
+        for (Peer peer : peers.values()) peer.send(frame);
+    }
+
+    /** Tells every peer that {@code username} logged in here, or out. */
+    void userOnline(String username, boolean online) {
+        if (nameOwner(username).equals(self)) claimed(username, self, online);
+        byte[] frame = userFrame(username, online);
+        for (Peer peer : peers.values()) peer.send(frame);
+    }
+
+    /**
+     * Asks the node that owns {@code username} whether this node may log a user in under it, and calls
+     * {@code done} with the answer, on whichever thread has it. If that node is unreachable or does not
+     * answer within {@link #CLAIM_TIMEOUT_MS}, the name is allowed unless it is known to be online elsewhere.
+     */
+    void claim(String username, Consumer<Boolean> done) {
+        String owner = nameOwner(username);
+        if (owner.equals(self)) {
+            done.accept(claimed(username, self, true));
+            return;
+        }
+        long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pendingClaims.put(id, reply);
+        reply.orTimeout(CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS).handle((granted, error) -> {
+            pendingClaims.remove(id);
+            return error == null ? granted : !remoteUsers.containsKey(username);
+        }).thenAccept(done);
+        boolean sent = peers.get(owner).send(frame(CLAIM, out -> {
+            out.writeLong(id);
+            writeString(out, username);
+        }));
+        if (!sent) reply.completeExceptionally(new IOException("link to " + owner + " is down"));
+    }
+
+    /** On the name's owner: records that {@code node} has {@code username}, or gave it up; false if another node has it. */
+    private boolean claimed(String username, String node, boolean online) {
+        if (!online) return claims.remove(username, node);
+        String holder = claims.putIfAbsent(username, node);
+        return holder == null || holder.equals(node);
+    }
+
+    /**
+     * Sends a PM to the node {@code receiver} is logged in to, which seals it under their key. False if they
+     * are not logged in anywhere else or that node is unreachable.
+     */
+    boolean sendPrivate(String seq, String sender, String receiver, String timestamp, String text) {
+        String node = remoteUsers.get(receiver);
+        return node != null && peers.get(node).send(frame(PRIVATE, out -> {
+            for (String field : new String[]{seq, sender, receiver, timestamp, text}) writeString(out, field);
+        }));
+    }
+
+    /** Sends {@code writer} a read receipt from {@code reader}, if they are logged in on another node; false if not. */
+    boolean sendRead(String writer, String reader, long upTo) {
+        String node = remoteUsers.get(writer);
+        if (node == null) return false;
+        return peers.get(node).send(frame(READ, out -> {
+            writeString(out, writer);
+            writeString(out, reader);
+            out.writeLong(upTo);
+        }));
+    }
+
+    /** Reads what one peer sends over a link it opened, until the link breaks. */
+    private void serve(Socket socket) {
+        String node = null;
+        Map<String, Snapshot> snapshots = new HashMap<>(); // room -> snapshot still arriving over this link
+        try (socket) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] challenge = nonce();
+            writeFrame(out, frame(CHALLENGE, o -> o.write(challenge)));
+            DataInputStream hello = readFrame(in);
+            if (hello.readByte() != HELLO) return;
+            String from = readString(hello);
+            long fromIncarnation = hello.readLong();
+            byte[] counter = hello.readNBytes(16);
+            byte[] proof = hello.readNBytes(32);
+            if (!MessageDigest.isEqual(proof, mac(challenge, from, fromIncarnation))) {
+                System.out.println("Ignoring cluster link from " + socket.getRemoteSocketAddress() + ": wrong --cluster-secret");
+                return;
+            }
+            if (!peers.containsKey(from)) {
+                System.out.println("Ignoring cluster link from unknown node " + from);
+                return;
+            }
+            writeFrame(out, frame(WELCOME, o -> {
+                o.writeLong(incarnation);
+                o.write(mac(counter, self, incarnation));
+            }));
+            socket.setSoTimeout(0);
+            node = from;
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) { // it reconnected before we noticed the old link was dead
+                previous.close();
+                peerDown(node);
+            }
+            Long seen = incarnations.put(node, fromIncarnation);
+            if (seen != null && seen != fromIncarnation) peers.get(node).reset(); // restarted: it has lost what we sent it
+            System.out.println("Cluster link from " + node + " is up");
+            while (true) handle(node, readFrame(in), snapshots);
+        } catch (IOException e) {
+            // the peer went away or sent garbage; its state is dropped below
+        } finally {
+            if (node != null && inbound.remove(node, socket)) {
+                System.out.println("Cluster link from " + node + " lost");
+                peerDown(node);
+            }
+        }
+    }
+
+    private void handle(String node, DataInputStream in, Map<String, Snapshot> snapshots) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case FORWARD -> {
+                Room room = room(readString(in));
+                OutboundMessage change = readEvent(in);
+                if (room != null && owns(room.name)) room.submit(change);
+            }
+            case PRESENCE -> {
+                Room room = room(readString(in));
+                String username = readString(in);
+                boolean inRoom = in.readBoolean();
+                if (room != null && owns(room.name)) room.presence(node, username, inRoom);
+            }
+            case EVENT -> {
+                Room room = room(readString(in));
+                if (room == null) return;
+                long change = in.readLong();
+                long seq = in.readLong();
+                OutboundMessage event = readEvent(in);
+                room.lock.lock();
+                try {
+                    room.replicate(change, seq, event);
+                } finally {
+                    room.lock.unlock();
+                }
+            }
+            case SNAPSHOT -> {
+                Snapshot snapshot = new Snapshot(readString(in), in.readLong(), in.readLong(), in.readInt());
+                snapshots.put(snapshot.room, snapshot);
+                if (snapshot.remaining == 0) snapshots.remove(snapshot.room).apply();
+            }
+            case SNAPSHOT_PART -> {
+                Snapshot snapshot = snapshots.get(readString(in));
+                if (snapshot == null) throw new IOException("Snapshot part without a snapshot");
+                if (snapshot.read(in)) snapshots.remove(snapshot.room).apply();
+            }
+            case USER -> {
+                String username = readString(in);
+                boolean online = in.readBoolean();
+                if (online) {
+                    remoteUsers.put(username, node);
+                } else {
+                    remoteUsers.remove(username, node);
+                }
+                if (nameOwner(username).equals(self)) claimed(username, node, online);
+            }
+            case CLAIM -> {
+                long id = in.readLong();
+                boolean granted = claimed(readString(in), node, true);
+                peers.get(node).send(frame(CLAIMED, out -> {
+                    out.writeLong(id);
+                    out.writeBoolean(granted);
+                }));
+            }
+            case CLAIMED -> {
+                CompletableFuture<Boolean> reply = pendingClaims.remove(in.readLong());
+                if (reply != null) reply.complete(in.readBoolean());
+            }
+            case PRIVATE -> ChatSession.deliverPrivateMessage(readString(in), readString(in), readString(in), readString(in), readString(in));
+            case READ -> {
+                ChatSession writer = ChatServer.sessions.get(readString(in));
+                String reader = readString(in);
+                long upTo = in.readLong();
+                if (writer != null) writer.outbound().send(OutboundMessage.event(WireProtocol.READ, reader, Long.toString(upTo)));
+            }
+            default -> throw new IOException("Unknown cluster frame " + op);
+        }
+    }
+
+    /**
+     * The room a peer's frame names, created empty on first use; null if no client could have named it
+     * or creating it would go over {@code --max-rooms}, in which case the frame is ignored.
+     */
+    private static Room room(String name) {
+        if (!Room.isValidName(name)) return null;
+        if (!ChatServer.rooms.containsKey(name) && ChatServer.rooms.size() >= ChatSession.MAX_ROOMS) return null;
+        return ChatServer.room(name);
+    }
+
+    /** Forgets {@code node}'s users, its names and its members of rooms owned here. */
+    private void peerDown(String node) {
+        remoteUsers.values().removeIf(node::equals);
+        claims.values().removeIf(node::equals);
+        for (Room room : ChatServer.rooms.values()) {
+            if (owns(room.name)) room.nodeLeft(node);
+        }
+    }
+
+    /**
+     * Writes what a peer that has just connected needs: users online here, rooms owned here, members of its
+     * rooms. Runs on the peer's writer thread before it drains the queue, so anything that changes meanwhile
+     * is queued behind it; changes a snapshot already holds are ignored by their change number.
+     */
+    private void sync(Peer peer, DataOutputStream out) throws IOException {
+        for (String username : ChatServer.sessions.keySet()) peer.write(out, userFrame(username, true));
+        for (Room room : ChatServer.rooms.values()) {
+            if (owns(room.name)) {
+                writeSnapshot(peer, out, room);
+            } else if (owner(room.name).equals(peer.node)) {
+                List<String> members;
+                room.lock.lock();
+                try {
+                    members = new ArrayList<>(room.memberNames());
+                } finally {
+                    room.lock.unlock();
+                }
+                for (String username : members) peer.write(out, presenceFrame(room.name, username, true));
+            }
+        }
+        out.flush();
+    }
+
+    /** A header with the room's change number and presence version, then its users, history and pins in parts. */
+    private static void writeSnapshot(Peer peer, DataOutputStream out, Room room) throws IOException {
+        long change;
+        long version;
+        List<String> users;
+        List<OutboundMessage> messages = new ArrayList<>();
+        long[] seqs;
+        List<OutboundMessage> pins;
+        room.lock.lock();
+        try {
+            change = room.changes();
+            version = room.presenceVersion();
+            users = new ArrayList<>(room.present());
+            room.history.forEach(messages::add);
+            seqs = new long[messages.size()];
+            for (int i = 0; i < seqs.length; i++) seqs[i] = room.history.seqOf(messages.get(i).field(0));
+            pins = new ArrayList<>(room.pins.values());
+        } finally {
+            room.lock.unlock();
+        }
+        int parts = users.size() + messages.size() + pins.size();
+        peer.write(out, frame(SNAPSHOT, o -> {
+            writeString(o, room.name);
+            o.writeLong(change);
+            o.writeLong(version);
+            o.writeInt(parts);
+        }));
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_BYTES + 1024);
+        DataOutputStream part = new DataOutputStream(chunk);
+        int count = 0;
+        for (int i = 0; i < parts; i++) {
+            if (i < users.size()) {
+                part.writeByte(PART_USER);
+                writeString(part, users.get(i));
+            } else if (i < users.size() + messages.size()) {
+                int m = i - users.size();
+                part.writeByte(PART_MESSAGE);
+                part.writeLong(seqs[m]);
+                writeEvent(part, messages.get(m));
+            } else {
+                part.writeByte(PART_PIN);
+                writeEvent(part, pins.get(i - users.size() - messages.size()));
+            }
+            count++;
+            if (chunk.size() >= CHUNK_BYTES || i == parts - 1) {
+                int n = count;
+                byte[] body = chunk.toByteArray();
+                peer.write(out, frame(SNAPSHOT_PART, o -> {
+                    writeString(o, room.name);
+                    o.writeInt(n);
+                    o.write(body);
+                }));
+                chunk.reset();
+                count = 0;
+            }
+        }
+    }
+
+    /** A room snapshot being received over one link; applied once its last part is in. */
+    private static final class Snapshot {
+        final String room;
+        final long change;
+        final long version;
+        int remaining;
+        final List<String> users = new ArrayList<>();
+        final SortedMap<Long, OutboundMessage> messages = new TreeMap<>();
+        final List<OutboundMessage> pins = new ArrayList<>();
+
+        Snapshot(String room, long change, long version, int parts) {
+            this.room = room;
+            this.change = change;
+            this.version = version;
+            this.remaining = parts;
+        }
+
+        /** Reads one part frame; true once every part has arrived. */
+        boolean read(DataInputStream in) throws IOException {
+            for (int n = in.readInt(); n > 0; n--, remaining--) {
+                switch (in.readByte()) {
+                    case PART_USER -> users.add(readString(in));
+                    case PART_MESSAGE -> messages.put(in.readLong(), readEvent(in));
+                    case PART_PIN -> pins.add(readEvent(in));
+                    default -> throw new IOException("Unknown snapshot part");
+                }
+            }
+            return remaining <= 0;
+        }
+
+        void apply() {
+            Room target = Cluster.room(room);
+            if (target == null) return;
+            target.lock.lock();
+            try {
+                target.resync(change, users, version, messages, pins);
+            } finally {
+                target.lock.unlock();
+            }
+        }
+    }
+
+    private static byte[] presenceFrame(String room, String username, boolean inRoom) {
+        return frame(PRESENCE, out -> {
+            writeString(out, room);
+            writeString(out, username);
+            out.writeBoolean(inRoom);
+        });
+    }
+
+    private static byte[] userFrame(String username, boolean online) {
+        return frame(USER, out -> {
+            writeString(out, username);
+            out.writeBoolean(online);
+        });
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] frame(byte op, Body body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            body.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // cannot happen writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private static DataInputStream readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_FRAME_BYTES) throw new IOException("Bad cluster frame length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void writeEvent(DataOutputStream out, OutboundMessage event) throws IOException {
+        out.writeByte(event.type());
+        out.writeByte(event.fieldCount());
+        for (int i = 0; i < event.fieldCount(); i++) writeString(out, event.field(i));
+    }
+
+    private static OutboundMessage readEvent(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String[] fields = new String[in.readByte()];
+        for (int i = 0; i < fields.length; i++) fields[i] = readString(in);
+        return OutboundMessage.event(type, fields);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] nonce() {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /** Proof that {@code node} knows the cluster secret, bound to the other end's {@code challenge}. */
+    private byte[] mac(byte[] challenge, String node, long nodeIncarnation) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(challenge);
+            mac.update(frame(HELLO, out -> {
+                writeString(out, node);
+                out.writeLong(nodeIncarnation);
+            }));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot compute cluster handshake: " + e.getMessage());
+        }
+    }
+
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    /** The link this node writes to one peer over, reconnecting with backoff whenever it breaks. */
+    private final class Peer implements Runnable {
+        final String node;
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_FRAMES);
+        private volatile boolean up;
+
+        Peer(String node) {
+            this.node = node;
+        }
+
+        /** Queues a frame; false if the link is down, or has just been dropped for falling behind. */
+        boolean send(byte[] frame) {
+            if (!up) return false;
+            if (queue.offer(frame)) return true;
+            System.out.println("Cluster link to " + node + " fell " + QUEUE_FRAMES + " frames behind, reconnecting");
+            reset();
+            return false;
+        }
+
+        /** Drops the link; the writer reconnects and resends everything the peer needs. */
+        void reset() {
+            up = false;
+            queue.clear();
+            queue.offer(RESET);
+        }
+
+        @Override
+        public void run() {
+            long backoffMillis = 100;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address(node), 2000);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+                    handshake(socket, out);
+                    queue.clear();
+                    up = true;
+                    backoffMillis = 100;
+                    System.out.println("Cluster link to " + node + " is up");
+                    sync(this, out);
+                    while (true) {
+                        byte[] frame = queue.take();
+                        if (frame == RESET) throw new IOException("reset");
+                        write(out, frame);
+                        if (queue.isEmpty()) out.flush();
+                    }
+                } catch (IOException e) {
+                    if (up) System.out.println("Cluster link to " + node + " lost: " + e.getMessage());
+                    up = false;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, 5000);
+            }
+        }
+
+        /** Answers the peer's challenge and checks that its reply to ours proves it knows the secret too. */
+        private void handshake(Socket socket, DataOutputStream out) throws IOException {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataInputStream challenge = readFrame(in);
+            if (challenge.readByte() != CHALLENGE) throw new IOException("no challenge");
+            byte[] theirs = challenge.readNBytes(16);
+            byte[] ours = nonce();
+            byte[] proof = mac(theirs, self, incarnation);
+            writeFrame(out, frame(HELLO, o -> {
+                writeString(o, self);
+                o.writeLong(incarnation);
+                o.write(ours);
+                o.write(proof);
+            }));
+            DataInputStream welcome = readFrame(in);
+            if (welcome.readByte() != WELCOME) throw new IOException("no welcome");
+            long nodeIncarnation = welcome.readLong();
+            if (!MessageDigest.isEqual(welcome.readNBytes(32), mac(ours, node, nodeIncarnation))) {
+                throw new IOException("peer does not know --cluster-secret");
+            }
+            socket.setSoTimeout(0);
+        }
+
+        void write(DataOutputStream out, byte[] frame) throws IOException {
+            out.writeInt(frame.length);
+            out.write(frame);
+        }
+    }
+}
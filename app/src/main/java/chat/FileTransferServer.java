@@ -0,0 +1,409 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Side channel that moves file contents, so a large upload never queues in front of chat lines.
+ * Uploads are spooled to the {@code uploads} directory under {@code --spool-dir}; downloads are sent
+ * straight from the spool file with {@link FileChannel#transferTo}, never passing through the heap.
+ * Each user's transfers share one {@code --file-rate-kb} budget. Only members of the room a file was shared in may download it.
+ *
+ * <p>Files live only as long as this process: spool files left by an earlier run are deleted on startup,
+ * a finished upload is deleted {@code --file-keep-hours} after it completed, and a reservation that has
+ * received nothing for as long as a ticket lasts is dropped with whatever part of it arrived.
+ *
+ * <p>At most {@code --file-connections} transfers run at once; further connections are closed straight away.
+ * A connection that has not presented a valid token within {@link #HANDSHAKE_NANOS}, or whose transfer has
+ * moved no bytes for {@link #IDLE_NANOS}, is closed by the ticker.
+ *
+ * <p>Each connection carries one request line, authorised by a token handed out on the chat connection:
+ * <ul>
+ * <li>{@code PUT <token>}: the server answers {@code OFFSET <n>} with the number of bytes it already
+ * holds, and the client sends the rest as chunks of {@code length:int, crc32:int, bytes}, each
+ * {@link WireProtocol#FILE_CHUNK_SIZE} long except the last. The server answers {@code DONE} when the
+ * file is complete, or {@code ERROR <reason>} and closes; reconnecting resumes from the last good chunk.
+ * <li>{@code GET <token> <offset>}: the server answers {@code OK <size> <start>}, where {@code start} is
+ * {@code offset} rounded down to a chunk boundary, then sends {@code crc32:int, bytes} per chunk.
+ * </ul>
+ */
+class FileTransferServer implements Runnable {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final long TICKET_TTL_NANOS = TimeUnit.HOURS.toNanos(6);
+    private static final long SWEEP_NANOS = TimeUnit.MINUTES.toNanos(1);
+    static final long HANDSHAKE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final ServerSocketChannel server;
+    private final Path spoolDir;
+    private final long bytesPerSecond;
+    private final long maxFileBytes;
+    private final long keepNanos;
+    private long nextSweep = System.nanoTime() + SWEEP_NANOS;
+    private final Map<String, StoredFile> files = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final Map<String, BandwidthLimiter> limiters = new ConcurrentHashMap<>();
+    private final Map<SocketChannel, Connection> connections = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+
+    /** An accepted socket, watched by {@link #tick} until it closes. */
+    private static final class Connection {
+        final SocketChannel channel;
+        final long acceptedAt = System.nanoTime();
+        volatile boolean authorised;
+        volatile long activeAt; // last byte moved, once authorised
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void touch() {
+            activeAt = System.nanoTime();
+        }
+
+        boolean stalled(long now) {
+            return authorised ? now - activeAt > IDLE_NANOS : now - acceptedAt > HANDSHAKE_NANOS;
+        }
+    }
+
+    private static final class StoredFile {
+        final String id;
+        final Room room;
+        final String owner;
+        final String name;
+        final long size;
+        final Path path;
+        final int[] checksums;
+        final ReentrantLock uploadLock = new ReentrantLock();
+        volatile SocketChannel uploader;
+        volatile long received;
+        volatile boolean complete;
+        volatile long touchedAt = System.nanoTime(); // reserved, last chunk received, or completed
+
+        StoredFile(String id, Room room, String owner, String name, long size, Path path) {
+            this.id = id;
+            this.room = room;
+            this.owner = owner;
+            this.name = name;
+            this.size = size;
+            this.path = path;
+            this.checksums = new int[(int) ((size + WireProtocol.FILE_CHUNK_SIZE - 1) / WireProtocol.FILE_CHUNK_SIZE)];
+        }
+    }
+
+    private record Ticket(String user, StoredFile file, boolean upload, long issuedAt) { }
+
+    FileTransferServer(int port, Path spoolDir, long bytesPerSecond, long maxFileBytes, long keepHours, int maxConnections) throws IOException {
+        this.spoolDir = spoolDir.resolve("uploads");
+        Files.createDirectories(this.spoolDir);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(this.spoolDir, FileTransferServer::isSpoolFile)) {
+            for (Path path : leftovers) delete(path); // uploads of an earlier run, which nothing refers to any more
+        }
+        this.server = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        this.workers = new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), task -> {
+            Thread thread = new Thread(task, "file-transfer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxFileBytes = maxFileBytes;
+        this.keepNanos = TimeUnit.HOURS.toNanos(keepHours);
+    }
+
+    /**
+     * Configured by {@code --file-port} (chat port + 1), {@code --spool-dir}, {@code --file-rate-kb},
+     * {@code --max-file-mb}, {@code --file-keep-hours} and {@code --file-connections}.
+     */
+    static FileTransferServer fromOptions(int chatPort) throws IOException {
+        return new FileTransferServer(ChatServer.intOption("file-port", chatPort + 1),
+                Paths.get(ChatServer.option("spool-dir", "chat-files")),
+                ChatServer.intOption("file-rate-kb", 4096) * 1024L,
+                ChatServer.intOption("max-file-mb", 2048) * 1024L * 1024L,
+                ChatServer.intOption("file-keep-hours", 24),
+                Math.max(1, ChatServer.intOption("file-connections", 64)));
+    }
+
+    int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Reserves an upload that is announced in {@code room} once complete; returns the {@code UPLOAD} event
+     * for the client, or null if the size is not acceptable.
+     */
+    OutboundMessage offerUpload(Room room, String owner, String name, long size) {
+        if (size <= 0 || size > maxFileBytes) return null;
+        String id = UUID.randomUUID().toString();
+        StoredFile file = new StoredFile(id, room, owner, name, size, spoolDir.resolve(id));
+        files.put(id, file);
+        return OutboundMessage.event(WireProtocol.UPLOAD, id, issue(new Ticket(owner, file, true, System.nanoTime())), Integer.toString(port()), name);
+    }
+
+    /** Returns the {@code DOWNLOAD} event for a completely uploaded file shared in {@code room}, or null if there is none. */
+    OutboundMessage offerDownload(Room room, String user, String fileId) {
+        StoredFile file = files.get(fileId);
+        if (file == null || !file.complete || room == null || !file.room.name.equals(room.name)) return null;
+        return OutboundMessage.event(WireProtocol.DOWNLOAD, fileId, issue(new Ticket(user, file, false, System.nanoTime())), Integer.toString(port()));
+    }
+
+    /** Registers a ticket under a fresh random token. Download tickets stay valid until they expire, so retries work. */
+    private String issue(Ticket ticket) {
+        tickets.values().removeIf(t -> ticket.issuedAt() - t.issuedAt() > TICKET_TTL_NANOS);
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        tickets.put(token, ticket);
+        return token;
+    }
+
+    /** Spool files are named after their upload's id; anything else in the directory is not ours to delete. */
+    private static boolean isSpoolFile(Path path) {
+        try {
+            return UUID.fromString(path.getFileName().toString()).toString().equals(path.getFileName().toString());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes connections that are still waiting for a token or whose transfer has stalled. Once a minute, also deletes finished uploads older than {@code --file-keep-hours} and reservations that have
+     * stalled for longer than a ticket lasts, with their tickets, and the bandwidth budgets of users who have
+     * logged out. Called by the server's ticker.
+     */
+    void tick() {
+        long now = System.nanoTime();
+        for (Connection connection : connections.values()) {
+            if (connection.stalled(now)) close(connection.channel);
+        }
+        if (now - nextSweep < 0) return;
+        nextSweep = now + SWEEP_NANOS;
+        for (StoredFile file : files.values()) {
+            boolean expired = file.complete ? now - file.touchedAt > keepNanos
+                    : file.uploader == null && now - file.touchedAt > TICKET_TTL_NANOS;
+            if (expired && files.remove(file.id, file)) {
+                tickets.values().removeIf(ticket -> ticket.file() == file);
+                delete(file.path);
+            }
+        }
+        limiters.keySet().retainAll(ChatServer.sessions.keySet());
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Could not delete " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing file transfer: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                Connection connection = new Connection(channel);
+                connections.put(channel, connection);
+                try {
+                    workers.execute(() -> handle(connection));
+                } catch (RejectedExecutionException e) {
+                    connections.remove(channel);
+                    close(channel);
+                }
+            } catch (IOException e) {
+                System.out.println("Error accepting file transfer: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(Connection connection) {
+        try (SocketChannel channel = connection.channel) {
+            String[] request = readLine(channel).split(" ");
+            Ticket ticket = request.length >= 2 ? tickets.get(request[1]) : null;
+            if (ticket == null) {
+                writeLine(channel, "ERROR unknown token");
+                return;
+            }
+            connection.touch();
+            connection.authorised = true;
+            if (request[0].equals("PUT") && ticket.upload()) {
+                receive(connection, request[1], ticket);
+            } else if (request[0].equals("GET") && !ticket.upload() && request.length == 3) {
+                send(connection, ticket, Long.parseLong(request[2]));
+            } else {
+                writeLine(channel, "ERROR bad request");
+            }
+        } catch (AsynchronousCloseException e) {
+            System.out.println("File transfer closed after " + (connection.authorised ? "stalling" : "sending no valid token"));
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("File transfer failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connections.remove(connection.channel);
+        }
+    }
+
+    private void receive(Connection connection, String token, Ticket ticket) throws IOException, InterruptedException {
+        SocketChannel channel = connection.channel;
+        StoredFile file = ticket.file();
+        SocketChannel previous = file.uploader;
+        if (previous != null) previous.close(); // a resumed upload replaces a connection that has not noticed it is dead
+        file.uploadLock.lock();
+        try {
+            file.uploader = channel;
+            writeLine(channel, "OFFSET " + file.received);
+            BandwidthLimiter limiter = limiter(ticket.user());
+            ByteBuffer header = ByteBuffer.allocate(8);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(WireProtocol.FILE_CHUNK_SIZE);
+            CRC32 crc = new CRC32();
+            try (FileChannel out = FileChannel.open(file.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                while (file.received < file.size) {
+                    int expected = (int) Math.min(WireProtocol.FILE_CHUNK_SIZE, file.size - file.received);
+                    header.clear();
+                    readFully(connection, header);
+                    int length = header.getInt(0);
+                    int checksum = header.getInt(4);
+                    if (length != expected) {
+                        writeLine(channel, "ERROR expected a chunk of " + expected + " bytes");
+                        return;
+                    }
+                    limiter.acquire(length);
+                    chunk.clear().limit(length);
+                    readFully(connection, chunk);
+                    chunk.flip();
+                    crc.reset();
+                    crc.update(chunk);
+                    if ((int) crc.getValue() != checksum) {
+                        writeLine(channel, "ERROR checksum mismatch at " + file.received);
+                        return;
+                    }
+                    chunk.flip();
+                    while (chunk.hasRemaining()) out.write(chunk, file.received + chunk.position());
+                    file.checksums[(int) (file.received / WireProtocol.FILE_CHUNK_SIZE)] = checksum;
+                    file.received += length;
+                    file.touchedAt = System.nanoTime();
+                }
+                out.force(false);
+            }
+            file.touchedAt = System.nanoTime();
+            file.complete = true;
+            tickets.remove(token);
+            writeLine(channel, "DONE");
+            file.room.broadcast(OutboundMessage.event(WireProtocol.FILE, file.id, file.owner, ChatSession.getTimestamp(), file.name));
+        } finally {
+            file.uploader = null;
+            file.uploadLock.unlock();
+        }
+    }
+
+    private void send(Connection connection, Ticket ticket, long offset) throws IOException, InterruptedException {
+        SocketChannel channel = connection.channel;
+        StoredFile file = ticket.file();
+        long start = Math.min(Math.max(0, offset), file.size) / WireProtocol.FILE_CHUNK_SIZE * WireProtocol.FILE_CHUNK_SIZE;
+        writeLine(channel, "OK " + file.size + " " + start);
+        BandwidthLimiter limiter = limiter(ticket.user());
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try (FileChannel in = FileChannel.open(file.path, StandardOpenOption.READ)) {
+            for (long position = start; position < file.size; position += WireProtocol.FILE_CHUNK_SIZE) {
+                long length = Math.min(WireProtocol.FILE_CHUNK_SIZE, file.size - position);
+                limiter.acquire((int) length);
+                connection.touch();
+                header.clear();
+                header.putInt(0, file.checksums[(int) (position / WireProtocol.FILE_CHUNK_SIZE)]);
+                while (header.hasRemaining()) channel.write(header);
+                for (long sent = 0; sent < length; ) {
+                    sent += in.transferTo(position + sent, length - sent, channel);
+                    connection.touch();
+                }
+            }
+        }
+    }
+
+    private BandwidthLimiter limiter(String user) {
+        return limiters.computeIfAbsent(user, u -> new BandwidthLimiter(bytesPerSecond));
+    }
+
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+        while (line.length() < 256) {
+            one.clear();
+            if (channel.read(one) < 0) throw new IOException("Connection closed");
+            char c = (char) one.get(0);
+            if (c == '\n') return line.toString();
+            line.append(c);
+        }
+        throw new IOException("Request line too long");
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static void readFully(Connection connection, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (connection.channel.read(buffer) < 0) throw new IOException("Connection closed mid-chunk");
+            connection.touch();
+        }
+    }
+
+    /** Token bucket shared by all of one user's transfers; holds at most one second of budget. */
+    private static final class BandwidthLimiter {
+        private final long bytesPerSecond;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long available;
+        private long refilledAt = System.nanoTime();
+
+        BandwidthLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.available = bytesPerSecond;
+        }
+
+        /** Blocks until {@code bytes} may be transferred. */
+        void acquire(int bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0) return;
+            lock.lock();
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    long capacity = Math.max(bytesPerSecond, WireProtocol.FILE_CHUNK_SIZE);
+                    available = Math.min(capacity, available + (long) ((now - refilledAt) / 1e9 * bytesPerSecond));
+                    refilledAt = now;
+                    if (available >= bytes) {
+                        available -= bytes;
+                        return;
+                    }
+                    TimeUnit.NANOSECONDS.sleep((bytes - available) * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
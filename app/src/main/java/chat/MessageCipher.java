@@ -0,0 +1,79 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Private-message encryption for one session key. The AES key is derived once, when the key is
+ * submitted at handshake; every message is sealed with AES-GCM under a fresh 96-bit nonce (a random
+ * per-key prefix plus a counter) and sent as Base64 of {@code nonce || ciphertext || tag}.
+ *
+ * <p>Cipher instances are expensive to look up, so each thread keeps one and re-initialises it per
+ * message; instances of this class are immutable apart from the nonce counter and safe to share.
+ */
+final class MessageCipher {
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " is not available", e);
+        }
+    });
+
+    private final SecretKey key;
+    private final int noncePrefix = RANDOM.nextInt();
+    private final AtomicLong nonceCounter = new AtomicLong();
+
+    /** Derives a 256-bit AES key from the key text exchanged at handshake. */
+    MessageCipher(String sessionKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sessionKey.getBytes(StandardCharsets.UTF_8));
+            this.key = new SecretKeySpec(digest, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    String encrypt(String message) {
+        byte[] plain = message.getBytes(StandardCharsets.UTF_8);
+        byte[] sealed = new byte[NONCE_BYTES + plain.length + TAG_BITS / 8];
+        long counter = nonceCounter.getAndIncrement();
+        for (int i = 0; i < 4; i++) sealed[i] = (byte) (noncePrefix >>> (24 - 8 * i));
+        for (int i = 0; i < 8; i++) sealed[4 + i] = (byte) (counter >>> (56 - 8 * i));
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 0, NONCE_BYTES));
+            cipher.doFinal(plain, 0, plain.length, sealed, NONCE_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Encryption failed", e);
+        }
+        return Base64.getEncoder().encodeToString(sealed);
+    }
+
+    /** Opens a message sealed by {@link #encrypt} under the same key; fails if it was tampered with. */
+    String decrypt(String encrypted) throws GeneralSecurityException {
+        byte[] sealed;
+        try {
+            sealed = Base64.getDecoder().decode(encrypted);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Not Base64", e);
+        }
+        if (sealed.length < NONCE_BYTES + TAG_BITS / 8) throw new GeneralSecurityException("Message too short");
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 0, NONCE_BYTES));
+        byte[] plain = cipher.doFinal(sealed, NONCE_BYTES, sealed.length - NONCE_BYTES);
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,147 @@
+package chat;
+
+import java.util.*;
+import javax.swing.AbstractListModel;
+
+/**
+ * The rows of {@link ChatClient}'s message view: a window of at most {@code capacity} rows over the
+ * conversation. Appending to a full window evicts the oldest row and prepending an older page evicts
+ * the newest ones; either end can be paged back in from the server. Rows live in a ring addressed by
+ * an ever-increasing absolute index, so a message id maps to its row in O(1) however the window
+ * slides, and edits and deletes never search the transcript.
+ *
+ * <p>Swing models are not thread-safe: use this only on the Event Dispatch Thread.
+ */
+final class MessageListModel extends AbstractListModel<MessageListModel.Row> {
+    enum Kind { MESSAGE, DELETED, PRIVATE, FILE, SYSTEM, RECEIPT }
+
+    /**
+     * One line of the view; {@code id} is the message id, the file id for a {@code FILE} row, or
+     * {@code pm:<seq>} for a private message. A {@code RECEIPT} row is a private message of
+     * ours that its reader has seen.
+     */
+    record Row(Kind kind, String id, String sender, String timestamp, String text) { }
+
+    private final Row[] ring;
+    private long head; // absolute index of row 0
+    private int size;
+    private final Map<String, Long> index = new HashMap<>(); // message id -> absolute index
+
+    MessageListModel(int capacity) {
+        this.ring = new Row[Math.max(1, capacity)];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Row getElementAt(int i) {
+        return ring[slot(head + i)];
+    }
+
+    /** Adds a row at the bottom; returns true if the oldest row had to be evicted to make room. */
+    boolean append(Row row) {
+        boolean evicted = size == ring.length;
+        if (evicted) removeFirst();
+        long abs = head + size;
+        ring[slot(abs)] = row;
+        size++;
+        indexRow(row, abs);
+        fireIntervalAdded(this, size - 1, size - 1);
+        return evicted;
+    }
+
+    /**
+     * Adds an older page above the top, {@code rows} being oldest first. Returns how many of the newest
+     * rows were evicted to make room.
+     */
+    int prepend(List<Row> rows) {
+        int evicted = 0;
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if (size == ring.length) {
+                removeLast();
+                evicted++;
+            }
+            head--;
+            ring[slot(head)] = rows.get(i);
+            size++;
+            indexRow(rows.get(i), head);
+            fireIntervalAdded(this, 0, 0);
+        }
+        return evicted;
+    }
+
+    /** The row of message {@code id}, or null if it is not in the window. */
+    Row get(String id) {
+        Long abs = index.get(id);
+        return abs == null ? null : ring[slot(abs)];
+    }
+
+    /** Replaces the row of message {@code id}, if it is in the window. */
+    boolean replace(String id, Row row) {
+        Long abs = index.get(id);
+        if (abs == null) return false;
+        ring[slot(abs)] = row;
+        int i = (int) (abs - head);
+        fireContentsChanged(this, i, i);
+        return true;
+    }
+
+    /** The oldest message id in the window, or null if there is none. */
+    String firstMessageId() {
+        for (int i = 0; i < size; i++) {
+            Row row = getElementAt(i);
+            if (row.kind() == Kind.MESSAGE || row.kind() == Kind.DELETED) return row.id();
+        }
+        return null;
+    }
+
+    /** The newest message id in the window, or null if there is none. */
+    String lastMessageId() {
+        for (int i = size - 1; i >= 0; i--) {
+            Row row = getElementAt(i);
+            if (row.kind() == Kind.MESSAGE || row.kind() == Kind.DELETED) return row.id();
+        }
+        return null;
+    }
+
+    void clear() {
+        if (size == 0) return;
+        int removed = size;
+        Arrays.fill(ring, null);
+        index.clear();
+        head += size;
+        size = 0;
+        fireIntervalRemoved(this, 0, removed - 1);
+    }
+
+    private void removeFirst() {
+        unindexRow(ring[slot(head)], head);
+        ring[slot(head)] = null;
+        head++;
+        size--;
+        fireIntervalRemoved(this, 0, 0);
+    }
+
+    private void removeLast() {
+        long abs = head + size - 1;
+        unindexRow(ring[slot(abs)], abs);
+        ring[slot(abs)] = null;
+        size--;
+        fireIntervalRemoved(this, size, size);
+    }
+
+    private void indexRow(Row row, long abs) {
+        if (row.kind() != Kind.FILE && row.id() != null) index.put(row.id(), abs);
+    }
+
+    private void unindexRow(Row row, long abs) {
+        if (row.id() != null) index.remove(row.id(), abs);
+    }
+
+    private int slot(long abs) {
+        return (int) Math.floorMod(abs, (long) ring.length);
+    }
+}
@@ -0,0 +1,370 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Durable copy of every room's history and pins: an append-only log split into memory-mapped segment
+ * files in {@code --data-dir}. Every record names the room it belongs to.
+ *
+ * <p>Sessions only enqueue records (while holding the room's {@link Room#lock}, so the log sees each
+ * room's changes in history order); a single writer thread encodes them into the current segment and forces
+ * it to disk at most once per {@code --log-fsync-ms} (group commit). Edits, deletes and pins are
+ * records of their own. Every {@code --log-compact-minutes} the writer replaces the log with a
+ * {@code .compact} segment holding only the live history and pins; on startup {@link #replay} starts
+ * from the newest compacted segment and applies every log segment after it.
+ *
+ * <p>A record is {@code length:int, crc32:int, body}; a zero length or a bad checksum marks the end of
+ * a segment (a torn tail after a crash). Segments keep their preallocated length, so the zeroed tail of one
+ * that was closed early reads as its end too. Only the writer's current segment is mapped; replay reads
+ * segments with plain reads. A segment whose mapping is still alive cannot be deleted on Windows, so one
+ * that compaction fails to delete is left for the next compaction, or for replay, to remove. A record too
+ * big for {@code --log-segment-mb} gets a segment of its own, sized to fit.
+ *
+ * <p>If the writer thread fails, it reports why and the log stops accepting records: the server keeps
+ * running without persistence rather than queueing records nothing will write.
+ */
+class MessageLog {
+    private static final byte APPEND = 1;
+    private static final byte EDIT = 2;
+    private static final byte DELETE = 3;
+    private static final byte PIN = 4;
+    private static final int HEADER = 8;
+    private static final String LOG = ".log";
+    private static final String COMPACT = ".compact";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long fsyncNanos;
+    private final long compactNanos;
+    private final LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer body = ByteBuffer.allocate(4096);
+    private Thread writer;
+    private volatile boolean running;
+    private volatile boolean failed; // the writer died; records are dropped
+    private long segmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private boolean dirty;
+    private boolean changedSinceCompaction;
+
+    private record Entry(byte kind, long seq, String room, String... fields) { }
+
+    /** Wakes the writer on {@link #close}; interrupting it instead would close the channel under it. */
+    private static final Entry STOP = new Entry((byte) 0, 0, "");
+
+    MessageLog(Path dir, int segmentBytes, long fsyncMillis, long compactMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        this.compactNanos = TimeUnit.MILLISECONDS.toNanos(compactMillis);
+    }
+
+    /** The log configured by {@code --data-dir} and friends, or null when {@code --data-dir=none}. */
+    static MessageLog fromOptions() {
+        String dir = ChatServer.option("data-dir", "chat-data");
+        if (dir.equals("none")) return null;
+        return new MessageLog(Paths.get(dir), ChatServer.intOption("log-segment-mb", 64) * 1024 * 1024,
+                ChatServer.intOption("log-fsync-ms", 10), TimeUnit.MINUTES.toMillis(ChatServer.intOption("log-compact-minutes", 10)));
+    }
+
+    /** Records a message that was just appended to the room's history under {@code seq}. */
+    void append(String room, long seq, OutboundMessage message) {
+        enqueue(new Entry(APPEND, seq, room, message.field(0), message.field(1), message.field(2), message.field(3)));
+    }
+
+    /** Records the new version of an edited message. */
+    void edit(String room, OutboundMessage message) {
+        enqueue(new Entry(EDIT, 0, room, message.field(0), message.field(1), message.field(2), message.field(3)));
+    }
+
+    void delete(String room, String msgId) {
+        enqueue(new Entry(DELETE, 0, room, msgId));
+    }
+
+    /** Records a {@code PIN} event, which is what the room keeps and replays to members who join later. */
+    void pin(String room, OutboundMessage pin) {
+        enqueue(new Entry(PIN, 0, room, pin.field(0), pin.field(1), pin.field(2), pin.field(3)));
+    }
+
+    private void enqueue(Entry entry) {
+        if (!failed) pending.add(entry);
+    }
+
+    /**
+     * Rebuilds the history and pins of every room from disk, looking rooms up (and creating them) with
+     * {@code rooms}, and returns the number of records applied. Must run before {@link #start}.
+     */
+    long replay(Function<String, Room> rooms) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = segments();
+        int first = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).toString().endsWith(COMPACT)) first = i;
+        }
+        long records = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            segmentNumber = Math.max(segmentNumber, number(path));
+            if (i < first || Files.size(path) == 0) {
+                Files.delete(path); // superseded by a later compaction, or never written to
+                continue;
+            }
+            long applied = replay(path, rooms);
+            if (applied == 0 && path.toString().endsWith(LOG)) Files.delete(path); // preallocated but never written to
+            records += applied;
+        }
+        return records;
+    }
+
+    private long replay(Path path, Function<String, Room> rooms) throws IOException {
+        long records = 0;
+        long remaining = Files.size(path);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536))) {
+            byte[] bytes = new byte[4096];
+            while (remaining >= HEADER) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                remaining -= HEADER;
+                if (length <= 0 || length > remaining) break;
+                if (bytes.length < length) bytes = new byte[Math.max(length, bytes.length * 2)];
+                in.readFully(bytes, 0, length);
+                remaining -= length;
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    System.out.println("Ignoring corrupt tail of " + path.getFileName());
+                    break;
+                }
+                apply(ByteBuffer.wrap(bytes, 0, length), rooms);
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private static void apply(ByteBuffer in, Function<String, Room> rooms) {
+        byte kind = in.get();
+        long seq = kind == APPEND ? in.getLong() : 0;
+        Room room = rooms.apply(readString(in));
+        switch (kind) {
+            case APPEND -> room.history.restore(seq, OutboundMessage.event(WireProtocol.MSG, readString(in), readString(in), readString(in), readString(in)));
+            case EDIT -> room.history.replace(OutboundMessage.event(WireProtocol.MSG, readString(in), readString(in), readString(in), readString(in)));
+            case DELETE -> room.history.remove(readString(in));
+            case PIN -> {
+                OutboundMessage pin = OutboundMessage.event(WireProtocol.PIN, readString(in), readString(in), readString(in), readString(in));
+                room.pins.put(pin.field(0), pin);
+            }
+            default -> System.out.println("Skipping unknown log record " + kind);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /** Opens a fresh segment and starts the writer thread. */
+    void start() throws IOException {
+        openSegment(++segmentNumber, LOG);
+        running = true;
+        writer = new Thread(this::run, "message-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Writes and forces everything enqueued so far, then stops the writer. */
+    void close() {
+        running = false;
+        if (writer == null) return;
+        pending.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        long lastForce = System.nanoTime();
+        long nextCompaction = compactNanos > 0 ? System.nanoTime() + compactNanos : Long.MAX_VALUE;
+        try {
+            while (running || !pending.isEmpty()) {
+                try {
+                    Entry first = pending.poll(dirty ? Math.max(1, fsyncNanos) : compactNanos > 0 ? compactNanos : Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                    if (first != null) batch.add(first);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                pending.drainTo(batch);
+                for (Entry entry : batch) {
+                    if (entry != STOP) write(entry);
+                }
+                batch.clear();
+
+                long now = System.nanoTime();
+                if (dirty && (now - lastForce >= fsyncNanos || !running)) {
+                    segment.force();
+                    dirty = false;
+                    lastForce = now;
+                }
+                if (now >= nextCompaction && running) {
+                    if (changedSinceCompaction) compact();
+                    nextCompaction = now + compactNanos;
+                }
+            }
+            closeSegment();
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            pending.clear();
+            System.out.println("Message log stopped, history is no longer persisted: " + e);
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        encode(entry);
+        int length = body.remaining();
+        if (segment.remaining() < HEADER + length) {
+            closeSegment();
+            openSegment(++segmentNumber, LOG, Math.max(segmentBytes, HEADER + length));
+        }
+        crc.reset();
+        crc.update(body.array(), 0, length);
+        segment.putInt(length);
+        segment.putInt((int) crc.getValue());
+        segment.put(body);
+        dirty = true;
+        changedSinceCompaction = true;
+    }
+
+    private void encode(Entry entry) {
+        byte[] room = entry.room().getBytes(StandardCharsets.UTF_8);
+        int size = 1 + 8 + 4 + room.length;
+        byte[][] fields = new byte[entry.fields().length][];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = entry.fields()[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + fields[i].length;
+        }
+        if (body.capacity() < size) body = ByteBuffer.allocate(Math.max(size, body.capacity() * 2));
+        body.clear();
+        body.put(entry.kind());
+        if (entry.kind() == APPEND) body.putLong(entry.seq());
+        body.putInt(room.length);
+        body.put(room);
+        for (byte[] field : fields) {
+            body.putInt(field.length);
+            body.put(field);
+        }
+        body.flip();
+    }
+
+    /**
+     * Rewrites the live history and pins of every room into a new compacted segment and deletes every
+     * older segment. Each room is snapshotted under its own lock, one room at a time, and that room's
+     * records still queued at that moment are already part of the snapshot and are discarded.
+     */
+    private void compact() throws IOException {
+        List<Entry> live = new ArrayList<>();
+        for (Room room : ChatServer.rooms.values()) {
+            room.lock.lock();
+            try {
+                MessageStore history = room.history;
+                history.forEach(message -> live.add(new Entry(APPEND, history.seqOf(message.field(0)), room.name,
+                        message.field(0), message.field(1), message.field(2), message.field(3))));
+                room.pins.values().forEach(pin -> live.add(new Entry(PIN, 0, room.name, pin.field(0), pin.field(1), pin.field(2), pin.field(3))));
+                pending.removeIf(entry -> entry.room().equals(room.name));
+            } finally {
+                room.lock.unlock();
+            }
+        }
+
+        closeSegment();
+        long number = ++segmentNumber;
+        Path tmp = dir.resolve(name(number, COMPACT) + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            for (Entry entry : live) {
+                encode(entry);
+                crc.reset();
+                crc.update(body.array(), 0, body.remaining());
+                header.clear();
+                header.putInt(body.remaining()).putInt((int) crc.getValue()).flip();
+                while (header.hasRemaining()) out.write(header);
+                while (body.hasRemaining()) out.write(body);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, dir.resolve(name(number, COMPACT)), StandardCopyOption.ATOMIC_MOVE);
+        for (Path path : segments()) {
+            if (number(path) >= number) continue;
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                System.out.println("Keeping " + path.getFileName() + " until it can be deleted: " + e.getMessage());
+            }
+        }
+        openSegment(++segmentNumber, LOG);
+        changedSinceCompaction = false;
+    }
+
+    private void openSegment(long number, String suffix) throws IOException {
+        openSegment(number, suffix, segmentBytes);
+    }
+
+    private void openSegment(long number, String suffix, int bytes) throws IOException {
+        channel = FileChannel.open(dir.resolve(name(number, suffix)), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+    }
+
+    /** Forces the current segment and closes it; its unused tail stays zero, and is never truncated while mapped. */
+    private void closeSegment() throws IOException {
+        if (channel == null) return;
+        segment.force();
+        dirty = false;
+        segment = null;
+        channel.close();
+        channel = null;
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(LOG) || name.endsWith(COMPACT)) {
+                    segments.add(path);
+                } else if (name.endsWith(".tmp")) {
+                    Files.delete(path); // compaction interrupted by a crash
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(MessageLog::number));
+        return segments;
+    }
+
+    private static String name(long number, String suffix) {
+        return String.format("%020d%s", number, suffix);
+    }
+
+    private static long number(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+}
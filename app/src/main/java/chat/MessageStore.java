@@ -0,0 +1,202 @@
+package chat;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * In-memory chat history: a fixed-capacity ring of {@code MSG} events addressed by sequence number,
+ * plus a message id index, so appending, editing, deleting and looking up a message cost the same
+ * no matter how much history is kept. Once the ring is full each append evicts the oldest slot.
+ * A deleted message's id keeps its sequence number until the slot is evicted, so it can still be
+ * used as a paging cursor. Live messages are also kept in a {@link SearchIndex}, updated by every append,
+ * edit, delete and eviction. The ring starts small and doubles up to its capacity as history
+ * arrives, so an empty room costs next to nothing however large {@code --history-size} is.
+ *
+ * <p>Not thread-safe; callers hold the owning {@link Room#lock}.
+ */
+class MessageStore {
+    private static final int INITIAL_SLOTS = 16;
+    private final int capacity;
+    private OutboundMessage[] slots;
+    private String[] ids;
+    private final Map<String, Long> index = new HashMap<>();
+    private final SearchIndex search = new SearchIndex();
+    private long nextSeq = 1;
+    private int size;
+
+    MessageStore(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.slots = new OutboundMessage[Math.min(this.capacity, INITIAL_SLOTS)];
+        this.ids = new String[slots.length];
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /** Number of live (not deleted, not evicted) messages. */
+    int size() {
+        return size;
+    }
+
+    /** Sequence number the next append will get. */
+    long nextSeq() {
+        return nextSeq;
+    }
+
+    /** Stores a {@code MSG} event whose field 0 is its message id; returns its sequence number. */
+    long append(OutboundMessage message) {
+        long seq = nextSeq;
+        restore(seq, message);
+        return seq;
+    }
+
+    /** Stores a message under a sequence number it was given earlier; used when rebuilding history. */
+    void restore(long seq, OutboundMessage message) {
+        if (seq < nextSeq - capacity) return; // would already have been evicted
+        if (seq >= nextSeq) {
+            long span = Math.min(seq, capacity); // sequence numbers kept once seq is in
+            if (span > slots.length) grow((int) Math.min(capacity, Math.max(span, 2L * slots.length)));
+            for (long skipped = Math.max(nextSeq, seq - slots.length + 1); skipped < seq; skipped++) {
+                evict(slotOf(skipped)); // gaps left by compaction must not expose older occupants
+            }
+            nextSeq = seq + 1;
+        }
+        int slot = slotOf(seq);
+        evict(slot);
+        slots[slot] = message;
+        ids[slot] = message.field(0);
+        index.put(message.field(0), seq);
+        search.add(seq, message);
+        size++;
+    }
+
+    /** The live message with this id, or null. */
+    OutboundMessage get(String msgId) {
+        Long seq = index.get(msgId);
+        return seq == null ? null : slots[slotOf(seq)];
+    }
+
+    /** Sequence number of the message with this id, or -1 once it has been evicted. */
+    long seqOf(String msgId) {
+        Long seq = index.get(msgId);
+        return seq == null ? -1 : seq;
+    }
+
+    /** Replaces the live message with the same id in place; returns false if it is gone. */
+    boolean replace(OutboundMessage message) {
+        Long seq = index.get(message.field(0));
+        if (seq == null || slots[slotOf(seq)] == null) return false;
+        search.remove(seq, slots[slotOf(seq)]);
+        slots[slotOf(seq)] = message;
+        search.add(seq, message);
+        return true;
+    }
+
+    /** Removes the live message with this id; returns it, or null if there was none. */
+    OutboundMessage remove(String msgId) {
+        Long seq = index.get(msgId);
+        if (seq == null) return null;
+        int slot = slotOf(seq);
+        OutboundMessage removed = slots[slot];
+        if (removed != null) {
+            search.remove(seq, removed);
+            slots[slot] = null;
+            size--;
+        }
+        return removed;
+    }
+
+    /**
+     * Adds up to {@code limit} live messages newer than {@code seq} to {@code sink}, oldest first.
+     * Returns true if there were more than {@code limit}.
+     */
+    boolean after(long seq, int limit, List<OutboundMessage> sink) {
+        int added = 0;
+        for (long s = Math.max(seq + 1, firstSeq()); s < nextSeq; s++) {
+            OutboundMessage message = slots[slotOf(s)];
+            if (message == null) continue;
+            if (added == limit) return true;
+            sink.add(message);
+            added++;
+        }
+        return false;
+    }
+
+    /**
+     * Adds up to {@code limit} live messages older than {@code seq} to {@code sink}, oldest first.
+     * Returns true if even older ones remain.
+     */
+    boolean before(long seq, int limit, List<OutboundMessage> sink) {
+        int start = sink.size();
+        long s = Math.min(seq, nextSeq) - 1;
+        for (long first = firstSeq(); s >= first; s--) {
+            OutboundMessage message = slots[slotOf(s)];
+            if (message == null) continue;
+            if (sink.size() - start == limit) break;
+            sink.add(message);
+        }
+        Collections.reverse(sink.subList(start, sink.size()));
+        return s >= firstSeq();
+    }
+
+    /**
+     * Adds to {@code sink}, newest first, up to {@code limit} live messages older than {@code beforeSeq} that
+     * contain all of {@code query}'s terms (there must be at least one) and pass its time filters. Returns true
+     * if there are more.
+     */
+    boolean search(SearchIndex.Query query, long beforeSeq, int limit, List<OutboundMessage> sink) {
+        boolean[] more = {false};
+        int start = sink.size();
+        search.matching(query.terms(), beforeSeq, seq -> {
+            OutboundMessage message = slots[slotOf(seq)];
+            if (!query.matchesTime(message.field(2))) return true;
+            if (sink.size() - start == limit) {
+                more[0] = true;
+                return false;
+            }
+            sink.add(message);
+            return true;
+        });
+        return more[0];
+    }
+
+    /** Visits live messages from oldest to newest. */
+    void forEach(Consumer<OutboundMessage> action) {
+        for (long seq = firstSeq(); seq < nextSeq; seq++) {
+            OutboundMessage message = slots[slotOf(seq)];
+            if (message != null) action.accept(message);
+        }
+    }
+
+    private void evict(int slot) {
+        if (ids[slot] != null) {
+            Long seq = index.remove(ids[slot]);
+            if (seq != null && slots[slot] != null) search.remove(seq, slots[slot]);
+        }
+        if (slots[slot] != null) size--;
+        ids[slot] = null;
+        slots[slot] = null;
+    }
+
+    /** Moves every kept message to a larger ring; only while the ring is smaller than the capacity. */
+    private void grow(int length) {
+        OutboundMessage[] oldSlots = slots;
+        String[] oldIds = ids;
+        slots = new OutboundMessage[length];
+        ids = new String[length];
+        for (long seq = firstSeq(); seq < nextSeq; seq++) {
+            int from = (int) (seq % oldSlots.length);
+            slots[slotOf(seq)] = oldSlots[from];
+            ids[slotOf(seq)] = oldIds[from];
+        }
+    }
+
+    private long firstSeq() {
+        return Math.max(1, nextSeq - capacity);
+    }
+
+    private int slotOf(long seq) {
+        return (int) (seq % slots.length);
+    }
+}
@@ -0,0 +1,255 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector-based server engine. A single acceptor hands new sockets to a small fixed pool of
+ * event loops; each loop multiplexes its connections with non-blocking reads and writes, so the
+ * number of threads no longer grows with the number of users.
+ */
+class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BATCH = 64;
+    private static final ScheduledExecutorService READ_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "nio-read-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    NioChatServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(channel));
+            }
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.session.start();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error registering client: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.out.println("Error in event loop task: " + e); // connection tasks close their own connection first
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.onReadable(readBuffer);
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            connection.fail(e); // a bug in handling one client must not stop the loop for all of them
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error in event loop: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final OutboundQueue queue;
+        private final ChatSession session;
+        private SelectionKey key;
+        private final OutboundMessage[] drained = new OutboundMessage[WRITE_BATCH];
+        private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+        private int batchStart;
+        private int batchEnd;
+        private boolean binary;
+        private WireProtocol.Compressor compressor; // once the client has asked for compressed output
+        private boolean readPaused;
+        private boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.queue = OutboundQueue.fromOptions(() -> later(this::flushQuietly), () -> later(this::close));
+            this.session = new ChatSession(queue);
+        }
+
+        void onReadable(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            session.receive(buffer);
+            if (session.isClosed()) {
+                close();
+                return;
+            }
+            long pause = session.readDelayNanos();
+            if (pause > 0) {
+                // Stop reading a client that is over its rate limit; its unread input backs up into its TCP window.
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                READ_TIMER.schedule(() -> later(this::resumeReads), pause, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /** Runs {@code task} on the event loop; if it throws, only this connection is closed. */
+        private void later(Runnable task) {
+            loop.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        /** Drops this connection after an unexpected error in handling it, as the thread engine would. */
+        void fail(RuntimeException e) {
+            System.out.println("Error handling client: " + e);
+            try {
+                close();
+            } catch (RuntimeException closing) {
+                System.out.println("Error closing client: " + closing);
+            }
+        }
+
+        private void resumeReads() {
+            if (closed) return;
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private int readOps() {
+            return readPaused ? 0 : SelectionKey.OP_READ;
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        /**
+         * Drains the outbound queue into the socket until it is empty or the socket stops accepting bytes.
+         * Queued messages go out with one gathering write per batch, each through its own view of the
+         * message's shared bytes.
+         */
+        void flush() throws IOException {
+            if (closed) return;
+            while (true) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = queue.drainTo(drained);
+                    if (batchEnd == 0) break;
+                    int count = batchEnd;
+                    batchEnd = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (drained[i] == OutboundMessage.SWITCH_TO_BINARY) {
+                            binary = true;
+                        } else if (drained[i] == OutboundMessage.SWITCH_TO_DEFLATE) {
+                            compressor = ChatServer.compressor();
+                        } else if (compressor != null) {
+                            compressor.write(drained[i].bytes(binary));
+                        } else {
+                            batch[batchEnd++] = drained[i].buffer(binary);
+                        }
+                        drained[i] = null;
+                    }
+                    if (compressor != null && compressor.pending() > 0) batch[batchEnd++] = compressor.flush();
+                    if (batchEnd == 0) continue;
+                }
+                channel.write(batch, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(readOps());
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            queue.close();
+            if (compressor != null) compressor.close();
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing socket: " + e.getMessage());
+            }
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One server-to-client event. A broadcast builds a single instance and hands it to every
+ * recipient's {@link OutboundQueue}; the text line and the {@link WireProtocol} frame are each
+ * encoded at most once, the first time a recipient speaking that protocol needs them, and then
+ * shared read-only by all writers.
+ */
+final class OutboundMessage {
+    /**
+     * Queue marker: everything after it on the same connection is written as binary frames.
+     * It is never dropped by an overflow policy.
+     */
+    static final OutboundMessage SWITCH_TO_BINARY = new OutboundMessage((byte) 0, new String[0]);
+    /** Queue marker: everything after it on the same connection goes out as {@link WireProtocol.Compressor} chunks. */
+    static final OutboundMessage SWITCH_TO_DEFLATE = new OutboundMessage((byte) 0, new String[0]);
+
+    private final byte type;
+    private final String[] fields;
+    private volatile String text;
+    private volatile byte[] textBytes;
+    private volatile byte[] frameBytes;
+
+    private OutboundMessage(byte type, String[] fields) {
+        this.type = type;
+        this.fields = fields;
+    }
+
+    /** A typed event; {@code fields} follow the {@link WireProtocol} schema for {@code type}. */
+    static OutboundMessage event(byte type, String... fields) {
+        return new OutboundMessage(type, fields);
+    }
+
+    /** A free-form line: handshake prompts and system notices. */
+    static OutboundMessage of(String text) {
+        OutboundMessage message = new OutboundMessage(WireProtocol.SYSTEM, new String[]{text});
+        message.text = text;
+        return message;
+    }
+
+    /**
+     * A version 1 line of event {@code type} that has no version 2 frame, such as the unversioned {@code USERLIST}
+     * that pre-v2 clients expect. Only for text connections.
+     */
+    static OutboundMessage textOnly(byte type, String text) {
+        OutboundMessage message = new OutboundMessage(type, new String[]{text});
+        message.text = text;
+        return message;
+    }
+
+    /** Whether this is one of the queue markers rather than an event for the client. */
+    boolean isMarker() {
+        return this == SWITCH_TO_BINARY || this == SWITCH_TO_DEFLATE;
+    }
+
+    byte type() {
+        return type;
+    }
+
+    String field(int i) {
+        return fields[i];
+    }
+
+    int fieldCount() {
+        return fields.length;
+    }
+
+    /** The version 1 line without its terminator. */
+    String text() {
+        String result = text;
+        if (result == null) {
+            result = WireProtocol.toText(type, fields);
+            text = result;
+        }
+        return result;
+    }
+
+    /** The version 1 line including the trailing {@code \n}. Shared by all recipients: must not be modified. */
+    byte[] bytes() {
+        byte[] result = textBytes;
+        if (result == null) {
+            byte[] encoded = text().getBytes(StandardCharsets.UTF_8);
+            result = new byte[encoded.length + 1];
+            System.arraycopy(encoded, 0, result, 0, encoded.length);
+            result[encoded.length] = '\n';
+            textBytes = result;
+        }
+        return result;
+    }
+
+    /** The version 2 frame. Shared by all recipients: must not be modified. */
+    byte[] frame() {
+        byte[] result = frameBytes;
+        if (result == null) {
+            result = WireProtocol.encode(type, fields);
+            frameBytes = result;
+        }
+        return result;
+    }
+
+    byte[] bytes(boolean binary) {
+        return binary ? frame() : bytes();
+    }
+
+    /** A fresh read-only view over the shared encoding, with its own position for partial writes. */
+    ByteBuffer buffer(boolean binary) {
+        return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+    }
+}
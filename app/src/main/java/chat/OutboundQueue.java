@@ -0,0 +1,216 @@
+package chat;
+
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bounded per-connection queue of outbound {@link OutboundMessage}s. Producers (broadcasts, private messages, replies)
+ * only ever enqueue, so a client on a slow link backs up its own queue instead of the sender; the
+ * connection's writer drains it at whatever pace the socket allows.
+ */
+class OutboundQueue {
+    enum OverflowPolicy {
+        /** Discard the oldest queued line to make room. */
+        DROP_OLDEST,
+        /** Replace superseded USERLIST/TYPING snapshots first, then fall back to dropping the oldest line. */
+        COALESCE,
+        /** Give up on the client: the queue closes and the connection is dropped. */
+        DISCONNECT;
+
+        static OverflowPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Runnable onNonEmpty;
+    private final Runnable onOverflow;
+    private final Deque<OutboundMessage> lines = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+    private long dropped;
+    private volatile boolean binary; // SWITCH_TO_BINARY has been queued
+
+    /**
+     * @param onNonEmpty invoked (outside the queue lock) whenever the queue goes from empty to non-empty
+     * @param onOverflow invoked once when the {@link OverflowPolicy#DISCONNECT} policy trips or {@link #disconnect} is called
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, Runnable onNonEmpty, Runnable onOverflow) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.onNonEmpty = onNonEmpty;
+        this.onOverflow = onOverflow;
+    }
+
+    /** Queue-size and overflow settings from {@code --outbound-capacity} and {@code --overflow-policy}. */
+    static OutboundQueue fromOptions(Runnable onNonEmpty, Runnable onOverflow) {
+        return new OutboundQueue(ChatServer.intOption("outbound-capacity", 1024),
+                OverflowPolicy.parse(ChatServer.option("overflow-policy", "coalesce")), onNonEmpty, onOverflow);
+    }
+
+    /** Encodes and enqueues a line meant for this client only. */
+    boolean send(String line) {
+        return send(OutboundMessage.of(line));
+    }
+
+    /** Enqueues a message without ever blocking. Returns false if the message was not accepted. */
+    boolean send(OutboundMessage line) {
+        boolean wasEmpty = false;
+        boolean overflowed = false;
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (lines.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    overflowed = true;
+                    closed = true;
+                    dropped += lines.size() + 1;
+                    lines.clear();
+                    notEmpty.signalAll();
+                } else {
+                    makeRoom(line);
+                }
+            }
+            if (!overflowed) {
+                if (line == OutboundMessage.SWITCH_TO_BINARY) binary = true;
+                wasEmpty = lines.isEmpty();
+                lines.addLast(line);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (overflowed) {
+            onOverflow.run();
+            return false;
+        }
+        ServerMetrics.eventOut(line.type());
+        if (wasEmpty) onNonEmpty.run();
+        return true;
+    }
+
+    private void makeRoom(OutboundMessage incoming) {
+        if (policy == OverflowPolicy.COALESCE) {
+            if (isStateUpdate(incoming)) {
+                dropped += removeMatching(line -> line.type() == incoming.type());
+            }
+            if (lines.size() >= capacity) {
+                dropOldest(OutboundQueue::isStateUpdate);
+            }
+        }
+        while (lines.size() >= capacity) {
+            if (!dropOldest(line -> !line.isMarker())) break;
+        }
+    }
+
+    private boolean dropOldest(Predicate<OutboundMessage> droppable) {
+        Iterator<OutboundMessage> it = lines.iterator();
+        while (it.hasNext()) {
+            if (droppable.test(it.next())) {
+                it.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int removeMatching(Predicate<OutboundMessage> predicate) {
+        int before = lines.size();
+        lines.removeIf(predicate);
+        return before - lines.size();
+    }
+
+    private static boolean isStateUpdate(OutboundMessage line) {
+        return line.type() == WireProtocol.USERLIST || line.type() == WireProtocol.TYPING;
+    }
+
+    /** Whether this client speaks version 2: everything queued from now on goes out as binary frames. */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /** Moves up to {@code sink.length} queued messages into {@code sink}; returns how many were moved. */
+    int drainTo(OutboundMessage[] sink) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < sink.length && !lines.isEmpty()) {
+                sink[n++] = lines.pollFirst();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocks until a message is available; returns null once the queue has been closed. */
+    OutboundMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (lines.isEmpty()) {
+                if (closed) return null;
+                notEmpty.await();
+            }
+            return lines.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return lines.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return lines.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops whatever is queued and has the connection closed, as a {@link OverflowPolicy#DISCONNECT} overflow does. */
+    void disconnect() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            dropped += lines.size();
+            lines.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        onOverflow.run();
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package chat;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-session flood protection: one token bucket each for chat, private messages, typing indicators,
+ * edits (which also covers deletes and pins) and reads (history pages, user lists and downloads, where a
+ * short command brings a large answer), sized by
+ * {@code --rate-limits=chat:5/20,pm:3/10,typing:4/8,edit:2/10,read:10/30} (tokens per second / burst; a
+ * rate of 0 turns a bucket off).
+ *
+ * <p>Each bucket is kept as the time at which it will be full again (the generic cell rate algorithm),
+ * updated with a single compare-and-set, so accounting never blocks and a limiter can be handed to the
+ * session that resumes this one. A client that overdraws a bucket is answered in steps: while the
+ * overdraft is under {@code --flood-max-delay-ms} the command goes through but the connection stops
+ * reading for that long, which pushes back on the sender through TCP; beyond that, commands are dropped;
+ * and after {@code --flood-disconnect-after} drops in a row the client is disconnected.
+ */
+final class RateLimiter {
+    enum Bucket { CHAT, PM, TYPING, EDIT, READ }
+
+    enum Verdict { ALLOW, DELAY, DROP, DISCONNECT }
+
+    /** A {@code --rate-limits} value that turns every bucket off, for benchmarks that drive sessions flat out. */
+    static final String OFF = "chat:0,pm:0,typing:0,edit:0,read:0";
+
+    private static final Bucket[] BUCKET_OF = new Bucket[128];
+    private static final long[] INTERVAL_NANOS = new long[Bucket.values().length];
+    private static final long[] WINDOW_NANOS = new long[Bucket.values().length];
+    private static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(ChatServer.intOption("flood-max-delay-ms", 5000));
+    private static final int DISCONNECT_AFTER = ChatServer.intOption("flood-disconnect-after", 100);
+
+    static {
+        BUCKET_OF[WireProtocol.SAY] = Bucket.CHAT;
+        BUCKET_OF[WireProtocol.JOIN_ROOM] = Bucket.CHAT;
+        BUCKET_OF[WireProtocol.LEAVE_ROOM] = Bucket.CHAT;
+        BUCKET_OF[WireProtocol.SEARCH] = Bucket.CHAT;
+        BUCKET_OF[WireProtocol.SEND_PM] = Bucket.PM;
+        BUCKET_OF[WireProtocol.SEND_READ] = Bucket.PM;
+        BUCKET_OF[WireProtocol.SEND_FILE] = Bucket.PM;
+        BUCKET_OF[WireProtocol.START_TYPING] = Bucket.TYPING;
+        BUCKET_OF[WireProtocol.STOP_TYPING] = Bucket.TYPING;
+        BUCKET_OF[WireProtocol.EDIT_MESSAGE] = Bucket.EDIT;
+        BUCKET_OF[WireProtocol.DELETE_MESSAGE] = Bucket.EDIT;
+        BUCKET_OF[WireProtocol.PIN_MESSAGE] = Bucket.EDIT;
+        BUCKET_OF[WireProtocol.REQUEST_HISTORY] = Bucket.READ;
+        BUCKET_OF[WireProtocol.REQUEST_NEWER] = Bucket.READ;
+        BUCKET_OF[WireProtocol.REQUEST_USERLIST] = Bucket.READ;
+        BUCKET_OF[WireProtocol.DOWNLOAD_FILE] = Bucket.READ;
+        configure("chat:5/20,pm:3/10,typing:4/8,edit:2/10,read:10/30");
+        configure(ChatServer.option("rate-limits", ""));
+    }
+
+    private final AtomicLongArray fullAt = new AtomicLongArray(Bucket.values().length);
+    private final AtomicLong readableAt = new AtomicLong();
+    private final AtomicInteger drops = new AtomicInteger();
+
+    RateLimiter() {
+        long now = System.nanoTime();
+        for (int i = 0; i < fullAt.length(); i++) fullAt.set(i, now);
+        readableAt.set(now);
+    }
+
+    /** Applies {@code name:rate/burst} entries over the current settings; later sessions see the change too. */
+    static void configure(String spec) {
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) continue;
+            try {
+                String[] nameAndRate = entry.trim().split(":", 2);
+                String[] rateAndBurst = nameAndRate[1].split("/", 2);
+                Bucket bucket = Bucket.valueOf(nameAndRate[0].toUpperCase(Locale.ROOT));
+                double perSecond = Double.parseDouble(rateAndBurst[0]);
+                int burst = rateAndBurst.length == 2 ? Integer.parseInt(rateAndBurst[1]) : 1;
+                long interval = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+                INTERVAL_NANOS[bucket.ordinal()] = interval;
+                WINDOW_NANOS[bucket.ordinal()] = interval * Math.max(1, burst);
+            } catch (RuntimeException e) {
+                System.out.println("Ignoring invalid --rate-limits entry " + entry);
+            }
+        }
+    }
+
+    /** Charges one command of {@code type} and says what to do with it; unmetered commands are always allowed. */
+    Verdict admit(byte type) {
+        Bucket bucket = BUCKET_OF[type & 0x7F];
+        if (bucket == null || INTERVAL_NANOS[bucket.ordinal()] == 0) return Verdict.ALLOW;
+        int index = bucket.ordinal();
+        long interval = INTERVAL_NANOS[index];
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get(index);
+            long next = Math.max(current, now) + interval;
+            long overdraft = next - now - WINDOW_NANOS[index];
+            if (overdraft > MAX_DELAY_NANOS) {
+                Verdict verdict = drops.incrementAndGet() >= DISCONNECT_AFTER ? Verdict.DISCONNECT : Verdict.DROP;
+                ServerMetrics.rateLimited(bucket, verdict);
+                return verdict;
+            }
+            if (!fullAt.compareAndSet(index, current, next)) continue;
+            if (drops.get() != 0) drops.set(0);
+            if (overdraft <= 0) return Verdict.ALLOW;
+            readableAt.accumulateAndGet(now + overdraft, Math::max);
+            ServerMetrics.rateLimited(bucket, Verdict.DELAY);
+            return Verdict.DELAY;
+        }
+    }
+
+    /** How long the connection should stop reading before handing this session more input. */
+    long readDelayNanos() {
+        return Math.max(0, readableAt.get() - System.nanoTime());
+    }
+}
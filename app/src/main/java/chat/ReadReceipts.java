@@ -0,0 +1,92 @@
+package chat;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How far each user has read each private conversation. Every PM carries a sequence number, and a receipt
+ * says "read up to N" rather than "read one more". A receipt only counts if it moves its reader's watermark
+ * forward, and watermarks that moved are sent to the other side once per tick, so a conversation costs at
+ * most one {@code READ} event per tick however many messages and receipts go back and forth.
+ *
+ * <p>Sequence numbers come from one server-wide counter rather than one per conversation: a session
+ * handles its commands in order, so each sender's messages to a reader still arrive in ascending order,
+ * which is all a watermark needs, and sending a PM costs one atomic update instead of a conversation
+ * lookup. The counter follows the clock in microseconds, so numbers handed out by different nodes of a
+ * {@link Cluster} stay comparable. Watermarks exist only for conversations that have had a receipt, and
+ * are dropped once the writer they were for is offline, or once they have been idle for {@link #IDLE_NANOS};
+ * a receipt that arrives later starts a new one. Nothing here blocks; the ticker drains a concurrent set of
+ * watermarks that moved.
+ */
+final class ReadReceipts {
+    private static final long MAX_SKEW_MICROS = 10_000_000; // how far ahead another node's clock may be
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final long SWEEP_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private final AtomicLong lastSeq = new AtomicLong();
+    private final Map<Direction, Watermark> watermarks = new ConcurrentHashMap<>();
+    private final Set<Watermark> moved = ConcurrentHashMap.newKeySet();
+    private long nextSweep = System.nanoTime() + SWEEP_NANOS;
+
+    /** What {@code reader} has read of {@code writer}'s messages. */
+    private record Direction(String reader, String writer) { }
+
+    /** The sequence number of the next PM. */
+    long nextSeq() {
+        return lastSeq.accumulateAndGet(System.currentTimeMillis() * 1000, (last, now) -> Math.max(last + 1, now));
+    }
+
+    /**
+     * Records that {@code reader} has read {@code writer}'s messages up to {@code seq} (capped at the last
+     * number any node can have handed out). Returns false if that does not move the watermark.
+     */
+    boolean read(String reader, String writer, long seq) {
+        long upTo = Math.min(seq, Math.max(lastSeq.get(), System.currentTimeMillis() * 1000 + MAX_SKEW_MICROS));
+        if (upTo <= 0) return false;
+        Watermark watermark = watermarks.computeIfAbsent(new Direction(reader, writer), Watermark::new);
+        if (watermark.readUpTo.getAndAccumulate(upTo, Math::max) >= upTo) return false;
+        watermark.movedAt = System.nanoTime();
+        moved.add(watermark);
+        return true;
+    }
+
+    /**
+     * Sends each watermark that moved since the last tick to the writer, if they are still logged in here or on
+     * another node, and forgets it if they are not. Once a minute, also forgets watermarks idle for too long.
+     */
+    void tick() {
+        for (Iterator<Watermark> it = moved.iterator(); it.hasNext(); ) {
+            Watermark watermark = it.next();
+            it.remove();
+            long upTo = watermark.readUpTo.get();
+            if (upTo == watermark.delivered) continue;
+            watermark.delivered = upTo;
+            ChatSession writer = ChatServer.sessions.get(watermark.direction.writer());
+            if (writer != null) {
+                writer.outbound().send(OutboundMessage.event(WireProtocol.READ, watermark.direction.reader(), Long.toString(upTo)));
+            } else if (ChatServer.cluster == null || !ChatServer.cluster.sendRead(watermark.direction.writer(), watermark.direction.reader(), upTo)) {
+                watermarks.remove(watermark.direction, watermark);
+            }
+        }
+        long now = System.nanoTime();
+        if (now - nextSweep >= 0) {
+            nextSweep = now + SWEEP_NANOS;
+            watermarks.values().removeIf(watermark -> now - watermark.movedAt > IDLE_NANOS && !moved.contains(watermark));
+        }
+    }
+
+    /** {@code delivered} is touched by the ticker only. */
+    private static final class Watermark {
+        final Direction direction;
+        final AtomicLong readUpTo = new AtomicLong();
+        volatile long movedAt;
+        long delivered;
+
+        Watermark(Direction direction) {
+            this.direction = direction;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package chat;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * One chat room: who is in it, its message history and its pins. Each room has its own lock, so
+ * posting, editing or broadcasting in one room never waits for another.
+ *
+ * <p>{@link #lock} guards {@link #history}, {@link #pins} and the member table; hold it when reading or
+ * changing them, and keep it for as long as events must reach members in the order the state changed.
+ * Broadcasting itself needs no lock: membership changes rebuild a copy-on-write array of member
+ * queues, and a broadcast walks whichever array it finds.
+ *
+ * <p>Every join and leave bumps the room's presence version and is broadcast as a {@code JOIN} or
+ * {@code LEAVE} event carrying it, still under the lock, so each member sees versions in order. A full
+ * {@code USERLIST} snapshot goes only to a member entering the room or one that saw a version gap.
+ * Members on the text protocol predate versions: they get the whole list, unversioned, on every change.
+ *
+ * <p>Changes to the room's history and presence go through {@link #submit} and {@link #addMember} /
+ * {@link #removeMember}. Alone, a server applies them on the spot. In a {@link Cluster} only the room's
+ * owner does: other nodes forward their members' changes to it, and apply what it commits, in the order
+ * it committed them, with {@link #replicate}. Members themselves are always local to a node.
+ *
+ * <p>A member's change does not wait for the lock. {@link #submit} queues it and applies it only if the
+ * lock is free; otherwise whichever thread holds the lock applies the queued changes, in order, before
+ * it lets go. Many members posting at once thus hand their changes to one thread instead of queueing up
+ * on the lock themselves. Joins and leaves go through the same queue, so a user's last message is never
+ * overtaken by their leaving. A thread applies at most {@link #APPLY_PER_UNLOCK} changes on its way out,
+ * so whatever else it does (an event loop, the log writer) is not held up by a busy room; the rest wait
+ * for the next thread through the lock, or for {@link #applySubmitted}.
+ */
+class Room {
+    static final String LOBBY = "general";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final int APPLY_PER_UNLOCK = 64;
+
+    final String name;
+    // ReentrantLock rather than synchronized: a virtual thread blocked on socket I/O inside a monitor pins its carrier
+    final ReentrantLock lock = new ChangeLock();
+    final MessageStore history;
+    final Map<String, OutboundMessage> pins = new LinkedHashMap<>(); // Message ID -> PIN event
+    final TypingAggregator typing;
+    private final Map<String, OutboundQueue> members = new LinkedHashMap<>(); // connected to this node
+    private volatile OutboundQueue[] writers = new OutboundQueue[0];
+    private final Set<String> present = new LinkedHashSet<>(); // everyone in the room, on any node
+    private final Map<String, Set<String>> presentOn = new HashMap<>(); // on the owner: username -> nodes they are in the room through
+    private long presenceVersion;
+    private OutboundMessage userList; // snapshot at presenceVersion, built when first asked for
+    private OutboundMessage textUserList; // the same for text members, without the version
+    private long changes; // number of the last change applied: counted on the owner, copied from it elsewhere
+    private boolean reclaimed; // dropped from ChatServer.rooms; whoever finds it must look the room up again
+    private final Queue<OutboundMessage> submitted = new ConcurrentLinkedQueue<>(); // applied by the next thread to release the lock
+
+    Room(String name, int historySize) {
+        this.name = name;
+        this.history = new MessageStore(historySize);
+        this.typing = new TypingAggregator(this::broadcast, ChatServer.intOption("typing-timeout-ms", 5000));
+    }
+
+    static boolean isValidName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    /**
+     * Adds a member and tells the others; the caller holds {@link #lock}. A user already present through an
+     * older connection just has it replaced, which is no change in presence.
+     */
+    void addMember(String username, OutboundQueue out) {
+        if (!members.containsKey(username)) presence(username, true);
+        members.put(username, out);
+        membersChanged();
+    }
+
+    /** Removes {@code username} if it is still in the room through {@code out}, not through a newer connection. */
+    void removeMember(String username, OutboundQueue out) {
+        lock.lock();
+        try {
+            if (members.remove(username, out)) {
+                membersChanged();
+                presence(username, false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void membersChanged() {
+        writers = members.values().toArray(new OutboundQueue[0]);
+    }
+
+    /** Names of this node's members; the caller holds {@link #lock}. */
+    Set<String> memberNames() {
+        return members.keySet();
+    }
+
+    private void presence(String username, boolean inRoom) {
+        Cluster cluster = ChatServer.cluster;
+        if (cluster == null) {
+            presence("", username, inRoom);
+        } else if (cluster.owns(name)) {
+            presence(cluster.self, username, inRoom);
+        } else {
+            cluster.presence(this, username, inRoom);
+        }
+    }
+
+    /** On the owner: {@code node} now has {@code username} in the room, or no longer has. */
+    void presence(String node, String username, boolean inRoom) {
+        submitted.add(OutboundMessage.event(inRoom ? WireProtocol.PRESENCE_JOIN : WireProtocol.PRESENCE_LEAVE, node, username));
+        if (lock.tryLock()) lock.unlock();
+    }
+
+    /** On the owner: {@code node} has dropped out of the cluster, taking its members with it. */
+    void nodeLeft(String node) {
+        submitted.add(OutboundMessage.event(WireProtocol.PRESENCE_LEAVE, node));
+        if (lock.tryLock()) lock.unlock();
+    }
+
+    /** A user counts as present while any node has them. The caller holds {@link #lock}. */
+    private void commitPresence(String node, String username, boolean inRoom) {
+        Set<String> nodes = presentOn.computeIfAbsent(username, u -> new HashSet<>(2));
+        boolean changed = inRoom ? nodes.add(node) && nodes.size() == 1 : nodes.remove(node) && nodes.isEmpty();
+        if (nodes.isEmpty()) presentOn.remove(username);
+        if (changed) {
+            byte type = inRoom ? WireProtocol.PRESENCE_JOIN : WireProtocol.PRESENCE_LEAVE;
+            commit(OutboundMessage.event(type, Long.toString(presenceVersion + 1), username), 0);
+        }
+    }
+
+    /**
+     * Makes a change on behalf of a member: a new {@code MSG}, an {@code EDIT} or {@code DELETE} of one, a
+     * {@code PIN} carrying just the id and the pinning user, or a {@code SYSTEM} notice. When another node
+     * owns the room the change is forwarded there and comes back once committed; false if that node is
+     * unreachable.
+     */
+    boolean submit(OutboundMessage change) {
+        Cluster cluster = ChatServer.cluster;
+        if (cluster != null && !cluster.owns(name)) return cluster.forward(this, change);
+        submitted.add(change);
+        if (lock.tryLock()) lock.unlock(); // applies it, unless someone else holds the lock and will
+        return true;
+    }
+
+    /**
+     * On the owner: commits a change if it is allowed (edits, deletes and pins only by the message's sender,
+     * while it is still in the history). A queued {@code JOIN} or {@code LEAVE} carries the node and the user,
+     * or just the node for all of its users. The caller holds {@link #lock}.
+     */
+    private void apply(OutboundMessage change) {
+        OutboundMessage event = switch (change.type()) {
+            case WireProtocol.MSG, WireProtocol.SYSTEM -> change;
+            case WireProtocol.PRESENCE_JOIN, WireProtocol.PRESENCE_LEAVE -> {
+                boolean inRoom = change.type() == WireProtocol.PRESENCE_JOIN;
+                if (change.fieldCount() == 2) {
+                    commitPresence(change.field(0), change.field(1), inRoom);
+                } else {
+                    for (String username : new ArrayList<>(presentOn.keySet())) commitPresence(change.field(0), username, false);
+                }
+                yield null;
+            }
+            case WireProtocol.EDIT, WireProtocol.DELETE, WireProtocol.PIN -> {
+                OutboundMessage msg = history.get(change.field(0));
+                if (msg == null || !msg.field(1).equals(change.field(1))) yield null;
+                yield change.type() != WireProtocol.PIN ? change
+                        : OutboundMessage.event(WireProtocol.PIN, msg.field(0), msg.field(1), msg.field(2), msg.field(3));
+            }
+            default -> null;
+        };
+        if (event != null) commit(event, event.type() == WireProtocol.MSG ? history.nextSeq() : 0);
+    }
+
+    private void commit(OutboundMessage event, long seq) {
+        changes++;
+        record(event, seq);
+        if (ChatServer.cluster != null) ChatServer.cluster.publish(this, changes, seq, event);
+    }
+
+    /**
+     * On every other node: applies change number {@code change}, committed by the owner with history sequence
+     * number {@code seq}, unless it is one the last snapshot already held. The caller holds {@link #lock}.
+     */
+    void replicate(long change, long seq, OutboundMessage event) {
+        if (change <= changes) return;
+        if (change != changes + 1) System.out.println("#" + name + " missed " + (change - changes - 1) + " changes from its owner");
+        changes = change;
+        record(event, seq);
+    }
+
+    /** Stores, logs and broadcasts a committed change. */
+    private void record(OutboundMessage event, long seq) {
+        MessageLog log = ChatServer.messageLog;
+        switch (event.type()) {
+            case WireProtocol.MSG -> {
+                history.restore(seq, event);
+                if (log != null) log.append(name, seq, event);
+            }
+            case WireProtocol.EDIT -> {
+                OutboundMessage edited = OutboundMessage.event(WireProtocol.MSG, event.field(0), event.field(1), event.field(2), event.field(3));
+                history.replace(edited);
+                if (log != null) log.edit(name, edited);
+            }
+            case WireProtocol.DELETE -> {
+                history.remove(event.field(0));
+                if (log != null) log.delete(name, event.field(0));
+            }
+            case WireProtocol.PIN -> {
+                pins.put(event.field(0), event);
+                if (log != null) log.pin(name, event);
+            }
+            case WireProtocol.PRESENCE_JOIN, WireProtocol.PRESENCE_LEAVE -> {
+                presenceVersion = Long.parseLong(event.field(0));
+                if (event.type() == WireProtocol.PRESENCE_JOIN) present.add(event.field(1)); else present.remove(event.field(1));
+                userList = null;
+                textUserList = null;
+                broadcastPresence(event);
+                return;
+            }
+            default -> { }
+        }
+        broadcast(event);
+    }
+
+    /** The number of the last change applied, which a snapshot of the room is taken at; the caller holds {@link #lock}. */
+    long changes() {
+        return changes;
+    }
+
+    /**
+     * On a node that has just (re)connected to the owner: takes over the owner's state as of change number
+     * {@code change}. Messages this node is missing are filled in and ones the owner no longer has are
+     * dropped, without telling members, who catch up when they next page or rejoin; presence is resent to
+     * them as a new snapshot. The caller holds {@link #lock}.
+     */
+    void resync(long change, List<String> users, long version, SortedMap<Long, OutboundMessage> messages, List<OutboundMessage> pinned) {
+        MessageLog log = ChatServer.messageLog;
+        changes = change;
+        Set<String> ids = new HashSet<>();
+        messages.forEach((seq, msg) -> {
+            ids.add(msg.field(0));
+            OutboundMessage mine = history.get(msg.field(0));
+            if (mine == null) {
+                history.restore(seq, msg);
+                if (log != null) log.append(name, seq, msg);
+            } else if (!mine.field(2).equals(msg.field(2)) || !mine.field(3).equals(msg.field(3))) {
+                history.replace(msg);
+                if (log != null) log.edit(name, msg);
+            }
+        });
+        List<String> stale = new ArrayList<>();
+        history.forEach(msg -> {
+            if (!ids.contains(msg.field(0))) stale.add(msg.field(0));
+        });
+        for (String id : stale) {
+            history.remove(id);
+            if (log != null) log.delete(name, id);
+        }
+        for (OutboundMessage pin : pinned) {
+            if (pins.put(pin.field(0), pin) == null && log != null) log.pin(name, pin);
+        }
+        present.clear();
+        present.addAll(users);
+        presenceVersion = version;
+        userList = null;
+        textUserList = null;
+        broadcastPresence(userList());
+    }
+
+    /** Everyone in the room, on any node, as of {@link #presenceVersion()}; the caller holds {@link #lock}. */
+    Set<String> present() {
+        return present;
+    }
+
+    long presenceVersion() {
+        return presenceVersion;
+    }
+
+    void broadcast(String message) {
+        broadcast(OutboundMessage.of(message));
+    }
+
+    void broadcast(OutboundMessage message) {
+        long start = System.nanoTime();
+        for (OutboundQueue writer : writers) {
+            writer.send(message);
+        }
+        ServerMetrics.broadcast.record(System.nanoTime() - start);
+    }
+
+    /** Sends {@code event} to version 2 members and the whole unversioned list to text members; the caller holds {@link #lock}. */
+    private void broadcastPresence(OutboundMessage event) {
+        long start = System.nanoTime();
+        for (OutboundQueue writer : writers) {
+            writer.send(writer.isBinary() ? event : userList(false));
+        }
+        ServerMetrics.broadcast.record(System.nanoTime() - start);
+    }
+
+    /** The {@code USERLIST} snapshot for the current presence version; the caller holds {@link #lock}. */
+    OutboundMessage userList() {
+        if (userList == null) {
+            userList = OutboundMessage.event(WireProtocol.USERLIST, Long.toString(presenceVersion), String.join(",", present));
+        }
+        return userList;
+    }
+
+    /** The snapshot for a member speaking {@code binary} or the text protocol; the caller holds {@link #lock}. */
+    OutboundMessage userList(boolean binary) {
+        if (binary) return userList();
+        if (textUserList == null) {
+            textUserList = OutboundMessage.textOnly(WireProtocol.USERLIST, "USERLIST:" + String.join(",", present));
+        }
+        return textUserList;
+    }
+
+    /**
+     * Marks the room reclaimed, for the ticker to drop from {@link ChatServer#rooms}, if nobody is in it and
+     * it holds no history or pins. The lobby is never reclaimed. Only for a server running alone: in a
+     * cluster a room's change numbers must outlive its idle spells.
+     */
+    boolean reclaimIfIdle() {
+        if (name.equals(LOBBY) || !lock.tryLock()) return false;
+        try {
+            if (!members.isEmpty() || !present.isEmpty() || history.size() > 0 || !pins.isEmpty() || !submitted.isEmpty()) return false;
+            reclaimed = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The caller holds {@link #lock}. */
+    boolean isReclaimed() {
+        return reclaimed;
+    }
+
+    /** Applies changes left queued by a thread that used up its share; run by the typing ticker. */
+    void applySubmitted() {
+        if (!submitted.isEmpty() && lock.tryLock()) lock.unlock();
+    }
+
+    /** Applies up to {@code budget} queued changes and returns what is left of it; the caller holds {@link #lock}. */
+    private int applySubmitted(int budget) {
+        for (OutboundMessage change; budget > 0 && (change = submitted.poll()) != null; budget--) {
+            try {
+                apply(change);
+            } catch (RuntimeException e) {
+                System.out.println("#" + name + " dropped a change that failed to apply: " + e);
+            }
+        }
+        return budget;
+    }
+
+    /** The room lock: the last thread out applies the changes submitted while it was held. */
+    private final class ChangeLock extends ServerMetrics.TimedLock {
+        @Override
+        public void unlock() {
+            int budget = APPLY_PER_UNLOCK;
+            while (true) {
+                try {
+                    if (getHoldCount() == 1) budget = applySubmitted(budget);
+                } finally {
+                    super.unlock();
+                }
+                // A change submitted just before the unlock found the lock taken: apply it unless another thread can
+                if (budget == 0 || isHeldByCurrentThread() || submitted.isEmpty() || !tryLock()) return;
+            }
+        }
+    }
+}
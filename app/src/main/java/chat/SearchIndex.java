@@ -0,0 +1,176 @@
+package chat;
+
+import java.util.*;
+import java.util.function.LongPredicate;
+
+/**
+ * Inverted index over one {@link MessageStore}: each word of a message's text, lower-cased, and its sender
+ * as {@code from:<name>} map to the ascending sequence numbers of the live messages that contain them.
+ * Posting lists are plain {@code long[]} arrays. A new message lands at the end of its lists and evicting
+ * the oldest message trims their fronts, both in constant time; only an edit or delete further back
+ * shifts the lists it touches.
+ *
+ * <p>Not thread-safe; callers hold the owning {@link Room#lock}.
+ */
+final class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final String FROM = "from:";
+
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    /**
+     * A parsed {@code /search} query: words that must all appear, and optional {@code from:<user>},
+     * {@code after:HH:mm[:ss]} and {@code before:HH:mm[:ss]} filters (times of day, as messages carry no
+     * date) and a {@code cursor:<message id>} to continue below the last result of the previous page.
+     */
+    record Query(List<String> terms, String after, String before, String cursor) {
+        static Query parse(String text) {
+            Set<String> terms = new LinkedHashSet<>();
+            String after = null;
+            String before = null;
+            String cursor = null;
+            for (String word : text.trim().split("\\s+")) {
+                String lower = word.toLowerCase(Locale.ROOT);
+                if (lower.startsWith(FROM) && lower.length() > FROM.length()) {
+                    terms.add(lower);
+                } else if (lower.startsWith("after:")) {
+                    after = timeOfDay(lower.substring(6));
+                } else if (lower.startsWith("before:")) {
+                    before = timeOfDay(lower.substring(7));
+                } else if (word.startsWith("cursor:")) {
+                    cursor = word.substring(7);
+                } else {
+                    terms.addAll(SearchIndex.terms(word));
+                }
+            }
+            return new Query(new ArrayList<>(terms), after, before, cursor);
+        }
+
+        /** Whether a message stamped {@code timestamp} (HH:mm:ss, possibly followed by a marker) passes the time filters. */
+        boolean matchesTime(String timestamp) {
+            String time = timestamp.length() > 8 ? timestamp.substring(0, 8) : timestamp;
+            return (after == null || time.compareTo(after) >= 0) && (before == null || time.compareTo(before) < 0);
+        }
+
+        private static String timeOfDay(String value) {
+            return value.length() == 5 ? value + ":00" : value;
+        }
+    }
+
+    /** Lower-cased runs of letters and digits in {@code text}, each once, capped at {@value #MAX_TERM_LENGTH} characters. */
+    static Set<String> terms(String text) {
+        Set<String> terms = new HashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                terms.add(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /** Indexes a {@code MSG} event (id, sender, timestamp, text) stored under {@code seq}. */
+    void add(long seq, OutboundMessage message) {
+        for (String term : terms(message.field(3))) {
+            postings.computeIfAbsent(term, t -> new Postings()).add(seq);
+        }
+        postings.computeIfAbsent(FROM + message.field(1).toLowerCase(Locale.ROOT), t -> new Postings()).add(seq);
+    }
+
+    /** Forgets a message indexed by {@link #add}; {@code message} must be the version that was added. */
+    void remove(long seq, OutboundMessage message) {
+        for (String term : terms(message.field(3))) {
+            remove(term, seq);
+        }
+        remove(FROM + message.field(1).toLowerCase(Locale.ROOT), seq);
+    }
+
+    private void remove(String term, long seq) {
+        Postings list = postings.get(term);
+        if (list != null && list.remove(seq) && list.size() == 0) postings.remove(term);
+    }
+
+    /**
+     * Offers {@code visitor}, newest first, each sequence number below {@code beforeSeq} that appears under
+     * every one of {@code terms}, until it returns false. The shortest list drives the walk and the others
+     * are probed by binary search in a range that shrinks as the walk moves back, so a query costs about
+     * (shortest list) × log(longest list) however much history there is.
+     */
+    void matching(List<String> terms, long beforeSeq, LongPredicate visitor) {
+        Postings[] lists = new Postings[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(terms.get(i));
+            if (lists[i] == null) return;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(Postings::size));
+        int[] limits = new int[lists.length]; // lists[i] is probed below limits[i] only
+        for (int i = 0; i < lists.length; i++) limits[i] = lists[i].end;
+        Postings driver = lists[0];
+        outer:
+        for (int at = driver.indexBelow(beforeSeq); at >= driver.start; at--) {
+            long seq = driver.seqs[at];
+            for (int i = 1; i < lists.length; i++) {
+                int found = Arrays.binarySearch(lists[i].seqs, lists[i].start, limits[i], seq);
+                limits[i] = found >= 0 ? found : -found - 1;
+                if (found < 0) continue outer;
+            }
+            if (!visitor.test(seq)) return;
+        }
+    }
+
+    /** Ascending sequence numbers in {@code seqs[start, end)}. */
+    private static final class Postings {
+        long[] seqs = new long[2];
+        int start;
+        int end;
+
+        int size() {
+            return end - start;
+        }
+
+        void add(long seq) {
+            if (end == seqs.length) {
+                if (start > seqs.length / 2) {
+                    System.arraycopy(seqs, start, seqs, 0, size());
+                    end -= start;
+                    start = 0;
+                } else {
+                    seqs = Arrays.copyOf(seqs, seqs.length * 2);
+                }
+            }
+            if (start == end || seqs[end - 1] < seq) {
+                seqs[end++] = seq; // the usual case: a new message
+                return;
+            }
+            int at = Arrays.binarySearch(seqs, start, end, seq);
+            if (at >= 0) return;
+            at = -at - 1;
+            System.arraycopy(seqs, at, seqs, at + 1, end - at);
+            seqs[at] = seq;
+            end++;
+        }
+
+        boolean remove(long seq) {
+            if (start == end) return false;
+            if (seqs[start] == seq) {
+                start++; // the usual case: the oldest message was evicted
+                return true;
+            }
+            int at = Arrays.binarySearch(seqs, start, end, seq);
+            if (at < 0) return false;
+            System.arraycopy(seqs, at + 1, seqs, at, end - at - 1);
+            end--;
+            return true;
+        }
+
+        /** Index of the last entry below {@code seq}, or {@code start - 1} if there is none. */
+        int indexBelow(long seq) {
+            int at = Arrays.binarySearch(seqs, start, end, seq);
+            return (at >= 0 ? at : -at - 1) - 1;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package chat;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.*;
+import javax.management.openmbean.*;
+
+/**
+ * Server-wide counters and latency histograms, cheap enough to leave on: the recording paths only bump
+ * striped {@link LongAdder}s and {@link LatencyHistogram} buckets, never lock or allocate. Gauges that
+ * need a walk over sessions or rooms (backlogs, history sizes) are computed only when someone reads them.
+ *
+ * <p>{@link #start} publishes a snapshot as the JMX MBean {@code ChatServer:type=Metrics} and, with
+ * {@code --stats-port}, as plain text at {@code http://127.0.0.1:<port>/stats}. A sampler thread turns the
+ * running totals into per-second rates once a second.
+ */
+final class ServerMetrics {
+    private static final LongAdder[] commandsIn = adders();
+    private static final LongAdder[] eventsOut = adders();
+    private static final long[] commandsInPerSecond = new long[128];
+    private static final long[] eventsOutPerSecond = new long[128];
+    private static final LongAdder[] rateLimited = adders(); // by bucket and verdict
+    static final LatencyHistogram broadcast = new LatencyHistogram(); // ns to queue one event for every member of a room
+    static final LatencyHistogram roomLockWait = new LatencyHistogram(); // ns spent waiting for a contended room lock
+    static final LatencyHistogram encryption = new LatencyHistogram(); // ns to seal one private message
+    static final LatencyHistogram search = new LatencyHistogram(); // ns to find one page of /search results
+    private static final int TOP_BACKLOGS = 10;
+
+    private ServerMetrics() {
+    }
+
+    /** A room lock that records how long callers wait for it; taking it uncontended costs nothing extra. */
+    static class TimedLock extends ReentrantLock {
+        @Override
+        public void lock() {
+            if (tryLock()) return;
+            long start = System.nanoTime();
+            super.lock();
+            roomLockWait.record(System.nanoTime() - start);
+        }
+    }
+
+    static void commandIn(byte type) {
+        commandsIn[type & 0x7F].increment();
+    }
+
+    static void eventOut(byte type) {
+        eventsOut[type & 0x7F].increment();
+    }
+
+    static void rateLimited(RateLimiter.Bucket bucket, RateLimiter.Verdict verdict) {
+        rateLimited[bucket.ordinal() * RateLimiter.Verdict.values().length + verdict.ordinal()].increment();
+    }
+
+    /** Starts the per-second sampler, registers the MBean and, if {@code statsPort} is positive, the HTTP endpoint. */
+    static void start(int statsPort) {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastIn = new long[128];
+        long[] lastOut = new long[128];
+        sampler.scheduleAtFixedRate(() -> {
+            for (int type = 0; type < 128; type++) {
+                long in = commandsIn[type].sum();
+                long out = eventsOut[type].sum();
+                commandsInPerSecond[type] = in - lastIn[type];
+                eventsOutPerSecond[type] = out - lastOut[type];
+                lastIn[type] = in;
+                lastOut[type] = out;
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("ChatServer:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics MBean not registered: " + e.getMessage());
+        }
+        if (statsPort > 0) {
+            try {
+                HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), statsPort), 0);
+                http.createContext("/stats", exchange -> {
+                    byte[] body = text().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                http.setExecutor(Executors.newSingleThreadExecutor(task -> { // never the sampler's: a slow reader would skew the rates
+                    Thread thread = new Thread(task, "metrics-http");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+                http.start();
+                System.out.println("Stats at http://127.0.0.1:" + statsPort + "/stats");
+            } catch (IOException e) {
+                System.out.println("Stats endpoint not started: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Every metric by name, in a stable order: the same names every time, each either a {@code Long} or a
+     * {@link Table} of labelled values (whose rows come and go).
+     */
+    static Map<String, Object> snapshot() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("sessions", (long) ChatServer.sessions.size());
+        metrics.put("rooms", (long) ChatServer.rooms.size());
+        long history = 0;
+        long largestHistory = 0;
+        for (Room room : ChatServer.rooms.values()) {
+            int size;
+            room.lock.lock();
+            try {
+                size = room.history.size();
+            } finally {
+                room.lock.unlock();
+            }
+            history += size;
+            largestHistory = Math.max(largestHistory, size);
+        }
+        metrics.put("history_messages", history);
+        metrics.put("history_largest_room", largestHistory);
+
+        long backlog = 0;
+        long dropped = 0;
+        PriorityQueue<Map.Entry<String, Integer>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, ChatSession> session : ChatServer.sessions.entrySet()) {
+            OutboundQueue out = session.getValue().outbound();
+            int queued = out.size();
+            backlog += queued;
+            dropped += out.dropped();
+            top.add(Map.entry(session.getKey(), queued));
+            if (top.size() > TOP_BACKLOGS) top.poll();
+        }
+        metrics.put("outbound_backlog_total", backlog);
+        metrics.put("outbound_dropped_total", dropped);
+        List<Map.Entry<String, Integer>> largest = new ArrayList<>(top);
+        largest.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        Table backlogs = new Table(new String[]{"user"}, "");
+        for (Map.Entry<String, Integer> client : largest) {
+            if (client.getValue() > 0) backlogs.add(new String[]{client.getKey()}, client.getValue());
+        }
+        metrics.put("outbound_backlog", backlogs);
+
+        Table commands = new Table(new String[]{"type"}, "total", "per_second");
+        Table events = new Table(new String[]{"type"}, "total", "per_second");
+        for (int type = 0; type < 128; type++) {
+            String name = WireProtocol.name((byte) type);
+            if (name == null) continue;
+            long in = commandsIn[type].sum();
+            if (in > 0) commands.add(new String[]{name}, in, commandsInPerSecond[type]);
+            long out = eventsOut[type].sum();
+            if (out > 0) events.add(new String[]{name}, out, eventsOutPerSecond[type]);
+        }
+        metrics.put("commands_in", commands);
+        metrics.put("events_out", events);
+        Table limited = new Table(new String[]{"bucket", "action"}, "total");
+        for (RateLimiter.Bucket bucket : RateLimiter.Bucket.values()) {
+            for (RateLimiter.Verdict verdict : RateLimiter.Verdict.values()) {
+                long count = rateLimited[bucket.ordinal() * RateLimiter.Verdict.values().length + verdict.ordinal()].sum();
+                if (count > 0) {
+                    limited.add(new String[]{bucket.name().toLowerCase(Locale.ROOT), verdict.name().toLowerCase(Locale.ROOT)}, count);
+                }
+            }
+        }
+        metrics.put("rate_limited", limited);
+        putHistogram(metrics, "broadcast_ns", broadcast);
+        putHistogram(metrics, "room_lock_wait_ns", roomLockWait);
+        putHistogram(metrics, "encrypt_ns", encryption);
+        putHistogram(metrics, "search_ns", search);
+        return metrics;
+    }
+
+    private static void putHistogram(Map<String, Object> metrics, String name, LatencyHistogram histogram) {
+        metrics.put(name + "_count", histogram.count());
+        Table quantiles = new Table(new String[]{"quantile"}, "");
+        for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            quantiles.add(new String[]{quantile}, histogram.percentile(Double.parseDouble(quantile) * 100));
+        }
+        metrics.put(name, quantiles);
+        metrics.put(name + "_max", histogram.max());
+    }
+
+    /**
+     * The snapshot as {@code name value} lines; a table gives one line per row and column, named
+     * {@code <table>_<column>{label="value",...}}, with quotes, backslashes and newlines in values escaped.
+     */
+    static String text() {
+        StringBuilder text = new StringBuilder();
+        snapshot().forEach((name, value) -> {
+            if (!(value instanceof Table table)) {
+                text.append(name).append(' ').append(value).append('\n');
+                return;
+            }
+            for (int column = 0; column < table.columns.length; column++) {
+                String metric = table.columns[column].isEmpty() ? name : name + "_" + table.columns[column];
+                for (Table.Row row : table.rows) {
+                    text.append(metric).append('{');
+                    for (int i = 0; i < table.labels.length; i++) {
+                        if (i > 0) text.append(',');
+                        text.append(table.labels[i]).append("=\"").append(escape(row.labels[i])).append('"');
+                    }
+                    text.append("} ").append(row.values[column]).append('\n');
+                }
+            }
+        });
+        return text.toString();
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** Values of one metric broken down by labels: a row per label set, with a {@code long} per column. */
+    static final class Table {
+        private record Row(String[] labels, long[] values) { }
+
+        final String[] labels;
+        final String[] columns;
+        final List<Row> rows = new ArrayList<>();
+
+        Table(String[] labels, String... columns) {
+            this.labels = labels;
+            this.columns = columns;
+        }
+
+        void add(String[] labels, long... values) {
+            rows.add(new Row(labels, values));
+        }
+
+        /** As JMX open data: one composite per row, keyed by the labels. */
+        TabularData toTabular(String name) throws OpenDataException {
+            String[] items = new String[labels.length + columns.length];
+            OpenType<?>[] types = new OpenType<?>[items.length];
+            for (int i = 0; i < items.length; i++) {
+                boolean label = i < labels.length;
+                String column = label ? labels[i] : columns[i - labels.length];
+                items[i] = label || !column.isEmpty() ? column : "value";
+                types[i] = label ? SimpleType.STRING : SimpleType.LONG;
+            }
+            CompositeType rowType = new CompositeType(name, name, items, items, types);
+            TabularDataSupport data = new TabularDataSupport(new TabularType(name, name, rowType, labels));
+            for (Row row : rows) {
+                Object[] values = new Object[items.length];
+                System.arraycopy(row.labels, 0, values, 0, labels.length);
+                for (int i = 0; i < columns.length; i++) values[labels.length + i] = row.values[i];
+                data.put(new CompositeDataSupport(rowType, items, values));
+            }
+            return data;
+        }
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[128];
+        for (int i = 0; i < adders.length; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * Read-only view of {@link #snapshot} for JMX. The attributes are the snapshot's names, which never
+     * change: plain metrics are {@code long}s and labelled ones {@link TabularData}.
+     */
+    private static final class MBean implements DynamicMBean {
+        private final MBeanInfo info;
+
+        MBean() throws OpenDataException {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> metric : snapshot().entrySet()) {
+                OpenType<?> type = metric.getValue() instanceof Table table ? table.toTabular(metric.getKey()).getTabularType() : SimpleType.LONG;
+                attributes.add(new OpenMBeanAttributeInfoSupport(metric.getKey(), metric.getKey(), type, true, false, false));
+            }
+            info = new MBeanInfo(ServerMetrics.class.getName(), "Chat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException {
+            Object value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return toJmx(attribute, value);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> metrics = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Object value = metrics.get(attribute);
+                try {
+                    if (value != null) list.add(new Attribute(attribute, toJmx(attribute, value)));
+                } catch (MBeanException e) {
+                    System.out.println("Metric " + attribute + " not readable over JMX: " + e.getMessage());
+                }
+            }
+            return list;
+        }
+
+        private static Object toJmx(String name, Object value) throws MBeanException {
+            if (!(value instanceof Table table)) return value;
+            try {
+                return table.toTabular(name);
+            } catch (OpenDataException e) {
+                throw new MBeanException(e);
+            }
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+    }
+}
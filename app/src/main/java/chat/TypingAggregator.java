@@ -0,0 +1,83 @@
+package chat;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Who is typing in one {@link Room}. {@code /typing} and {@code /stoptyping} only update this table;
+ * once per tick, and only if the set of typists changed, one {@code TYPING} event listing them is
+ * broadcast to the room. However fast users type, each client gets at most one typing update per
+ * tick. A single ticker thread serves every room. Users
+ * whose last {@code /typing} is older than the timeout drop out on their own, so a client that
+ * vanished mid-sentence does not stay "typing" forever.
+ */
+class TypingAggregator {
+    private final Consumer<OutboundMessage> room;
+    private final long timeoutNanos;
+    private final Map<String, Long> lastSeen = new LinkedHashMap<>(); // username -> nanoTime of the latest /typing
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean changed;
+
+    /** @param room where the coalesced {@code TYPING} events go */
+    TypingAggregator(Consumer<OutboundMessage> room, long timeoutMillis) {
+        this.room = room;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Starts the thread that runs {@code tickAll} (which ticks every room's aggregator) every {@code tickMillis}.
+     * An exception from one run is reported and the next tick runs as usual.
+     */
+    static void startTicker(long tickMillis, Runnable tickAll) {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "typing-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                tickAll.run();
+            } catch (RuntimeException e) { // would cancel every later tick
+                System.out.println("Ticker failed: " + e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Marks {@code username} as typing, or keeps them marked for another timeout period. */
+    void typing(String username) {
+        lock.lock();
+        try {
+            if (lastSeen.put(username, System.nanoTime()) == null) changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void stopped(String username) {
+        lock.lock();
+        try {
+            if (lastSeen.remove(username) != null) changed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void tick() {
+        OutboundMessage update;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (lastSeen.values().removeIf(seen -> now - seen > timeoutNanos)) changed = true;
+            if (!changed) return;
+            changed = false;
+            update = OutboundMessage.event(WireProtocol.TYPING, String.join(",", lastSeen.keySet()));
+        } finally {
+            lock.unlock();
+        }
+        room.accept(update);
+    }
+}
@@ -0,0 +1,606 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Framing shared by {@link ChatServer} and {@link ChatClient}.
+ *
+ * <p>Every connection starts in the original line protocol. A client that speaks version 2 appends
+ * {@link #REQUEST} to its {@code SUBMIT_KEY} reply and sends binary frames from then on; the server
+ * answers with {@link #ACCEPTED} as its last text line and switches too. Old clients never ask and
+ * keep getting text. A client that already holds part of the history also appends {@link #SINCE} and the
+ * id of the newest message it has, and only receives what it missed.
+ *
+ * <p>Once logged in, a client is sent a {@code SESSION} event with a resume token. After losing its
+ * connection it can answer {@code SUBMIT_USERNAME} with {@link #RESUME} and that token (plus the same
+ * optional suffixes as the key reply) to get its username, key and room back without the rest of the
+ * handshake. A token that is unknown or expired is answered with {@code SUBMIT_USERNAME} again.
+ *
+ * <p>A version 2 frame is {@code type:u8, length:varint, payload}. The payload is the frame type's
+ * fields in schema order: message ids as 16 raw bytes, everything else as a varint length followed
+ * by UTF-8. Field values are the same strings the text protocol joins with {@code ':'}, so text
+ * inside a field can contain colons. It cannot contain line breaks: the decoder turns CR and LF into
+ * spaces, because the server relays the same text to version 1 clients, where a newline would end the
+ * line and start a forged one.
+ *
+ * <p>A client may also append {@link #COMPRESS} (after {@link #REQUEST}, before {@link #SINCE}) to ask for
+ * compressed server output. A server willing to compress ends its accept line with {@link #COMPRESS} too,
+ * and everything it sends after that line is a sequence of chunks framed like version 2 frames:
+ * {@code flag:u8, length:varint, bytes}. Flag {@link #CHUNK_RAW} carries the bytes as they are; flag
+ * {@link #CHUNK_DEFLATE} carries the next part of one zlib stream, primed with {@link #DEFLATE_DICTIONARY}
+ * and sync-flushed at the end of every chunk. Inside the chunks the connection speaks whatever protocol it
+ * negotiated. Client output is never compressed.
+ *
+ * <p>File contents never travel over the chat connection. {@code /file <size> <name>} reserves an
+ * upload and {@code /download <id>} a download; the server answers with a one-off token and the port of
+ * the {@link FileTransferServer} side channel, where the bytes move in {@link #FILE_CHUNK_SIZE} chunks,
+ * each with a CRC-32.
+ *
+ * <p>A session is in one room at a time, starting in {@link Room#LOBBY}. {@code /join <room>} and
+ * {@code /leave} move it; the server confirms with a {@code ROOM} event, after which messages, pins,
+ * the user list and typing indicators all belong to the new room.
+ *
+ * <p>Presence is incremental. Entering a room brings a {@code USERLIST} snapshot tagged with the room's
+ * presence version; each later join or leave arrives as a {@code JOIN} or {@code LEAVE} event with the next
+ * version. A client that sees a version skipped (its queue overflowed, say) asks for a new snapshot
+ * with {@code /users}. Text (pre-v2) connections keep the original behaviour: an unversioned
+ * {@code USERLIST:<user>,<user>...} line with the whole list on every change, and no {@code JOIN} or {@code LEAVE}.
+ *
+ * <p>{@code /search <words>} looks through the current room's history. Matches come back newest first as
+ * {@code SEARCH} events, one per message, followed by {@code SEARCH_END:true} if there are more; the
+ * next page is the same query with {@code cursor:<id of the last match>} added.
+ *
+ * <p>Private messages carry ascending sequence numbers: {@code PM:<seq>:<sender>:<receiver>:<time>:<text>}
+ * goes to both sides. Read state is a watermark, not a receipt per message: a reader sends
+ * {@code /read <sender> <seq>} when it has read that far, and the sender gets {@code READ:<reader>:<seq>}
+ * with the latest watermark, at most once per {@code --typing-tick-ms}.
+ */
+final class WireProtocol {
+    static final String REQUEST = " PROTO=2";
+    static final String ACCEPTED = "USERNAME_ACCEPTED PROTO=2";
+    static final String SINCE = " SINCE=";
+    static final String RESUME = "RESUME ";
+    static final String COMPRESS = " DEFLATE";
+    private static final byte CHUNK_RAW = 0;
+    private static final byte CHUNK_DEFLATE = 1;
+    /** Strings that recur in server output, so even the first compressed chunk of a connection has something to refer back to. */
+    static final byte[] DEFLATE_DICTIONARY = ("SUBMIT_USERNAME\nSUBMIT_KEY\nUSERNAME_ACCEPTED PROTO=2\nSYNC:reset\nSYNC:continue\n"
+            + "HISTORY_END:false\nHISTORY_END:true\nSEARCH_END:false\nROOM:general\nSESSION:USERLIST:JOIN:LEAVE:TYPING:\n"
+            + " has left the chat\n has left #\n has joined #\n has joined the chat\n[Edited]PIN:EDIT:DELETE:HISTORY:MSG:")
+            .getBytes(StandardCharsets.UTF_8);
+    static final int MAX_FRAME_LENGTH = 64 * 1024;
+    static final int FILE_CHUNK_SIZE = 64 * 1024;
+
+    // Server -> client events
+    static final byte SYSTEM = 0x01;
+    static final byte USERLIST = 0x02;
+    static final byte MSG = 0x03;
+    static final byte PM = 0x04;
+    static final byte FILE = 0x05;
+    static final byte TYPING = 0x06;
+    static final byte READ = 0x07;
+    static final byte EDIT = 0x08;
+    static final byte DELETE = 0x09;
+    static final byte PIN = 0x0A;
+    static final byte SYNC = 0x0B;
+    static final byte HISTORY = 0x0C;
+    static final byte HISTORY_END = 0x0D;
+    static final byte UPLOAD = 0x0E;
+    static final byte DOWNLOAD = 0x0F;
+    static final byte ROOM = 0x10;
+    static final byte SESSION = 0x11;
+    static final byte PRESENCE_JOIN = 0x12;
+    static final byte PRESENCE_LEAVE = 0x13;
+    static final byte SEARCH_RESULT = 0x14;
+    static final byte SEARCH_END = 0x15;
+
+    // Client -> server commands
+    static final byte SAY = 0x20;
+    static final byte SEND_PM = 0x21;
+    static final byte SEND_FILE = 0x22;
+    static final byte START_TYPING = 0x23;
+    static final byte STOP_TYPING = 0x24;
+    static final byte SEND_READ = 0x25;
+    static final byte EDIT_MESSAGE = 0x26;
+    static final byte DELETE_MESSAGE = 0x27;
+    static final byte PIN_MESSAGE = 0x28;
+    static final byte REQUEST_HISTORY = 0x29;
+    static final byte DOWNLOAD_FILE = 0x2A;
+    static final byte JOIN_ROOM = 0x2B;
+    static final byte LEAVE_ROOM = 0x2C;
+    static final byte REQUEST_NEWER = 0x2D;
+    static final byte REQUEST_USERLIST = 0x2E;
+    static final byte SEARCH = 0x2F;
+
+    private static final byte[] COMMANDS = {SEND_PM, SEND_FILE, START_TYPING, STOP_TYPING, SEND_READ, EDIT_MESSAGE, DELETE_MESSAGE, PIN_MESSAGE,
+            REQUEST_HISTORY, REQUEST_NEWER, DOWNLOAD_FILE, JOIN_ROOM, LEAVE_ROOM, REQUEST_USERLIST, SEARCH};
+    private static final byte ID = 'I';
+    private static final byte STR = 'S';
+    private static final byte[][] SCHEMAS = new byte[128][];
+    private static final String[] TEXT_PREFIXES = new String[128];
+    private static final String[] NAMES = new String[128];
+
+    static {
+        define(SYSTEM, "SYSTEM", "", STR);
+        define(USERLIST, "USERLIST", "USERLIST:", STR, STR);
+        define(MSG, "MSG", "MSG:", ID, STR, STR, STR);
+        define(PM, "PM", "PM:", STR, STR, STR, STR, STR);
+        define(FILE, "FILE", "FILE:", ID, STR, STR, STR);
+        define(TYPING, "TYPING", "TYPING:", STR);
+        define(READ, "READ", "READ:", STR, STR);
+        define(EDIT, "EDIT", "EDIT:", ID, STR, STR, STR);
+        define(DELETE, "DELETE", "DELETE:", ID, STR);
+        define(PIN, "PIN", "PIN:", ID, STR, STR, STR);
+        define(SYNC, "SYNC", "SYNC:", STR);
+        define(HISTORY, "HISTORY", "HISTORY:", ID, STR, STR, STR);
+        define(HISTORY_END, "HISTORY_END", "HISTORY_END:", STR);
+        define(UPLOAD, "UPLOAD", "UPLOAD:", ID, STR, STR, STR);
+        define(DOWNLOAD, "DOWNLOAD", "DOWNLOAD:", ID, STR, STR);
+        define(ROOM, "ROOM", "ROOM:", STR);
+        define(SESSION, "SESSION", "SESSION:", STR);
+        define(PRESENCE_JOIN, "PRESENCE_JOIN", "JOIN:", STR, STR);
+        define(PRESENCE_LEAVE, "PRESENCE_LEAVE", "LEAVE:", STR, STR);
+        define(SEARCH_RESULT, "SEARCH_RESULT", "SEARCH:", ID, STR, STR, STR);
+        define(SEARCH_END, "SEARCH_END", "SEARCH_END:", STR);
+
+        define(SAY, "SAY", null, STR);
+        define(SEND_PM, "SEND_PM", "/pm ", STR, STR);
+        define(SEND_FILE, "SEND_FILE", "/file ", STR, STR);
+        define(START_TYPING, "START_TYPING", "/typing");
+        define(STOP_TYPING, "STOP_TYPING", "/stoptyping");
+        define(SEND_READ, "SEND_READ", "/read ", STR, STR);
+        define(EDIT_MESSAGE, "EDIT_MESSAGE", "/edit ", ID, STR);
+        define(DELETE_MESSAGE, "DELETE_MESSAGE", "/delete ", ID);
+        define(PIN_MESSAGE, "PIN_MESSAGE", "/pin ", ID);
+        define(REQUEST_HISTORY, "REQUEST_HISTORY", "/history ", ID);
+        define(REQUEST_NEWER, "REQUEST_NEWER", "/newer ", ID);
+        define(DOWNLOAD_FILE, "DOWNLOAD_FILE", "/download ", ID);
+        define(JOIN_ROOM, "JOIN_ROOM", "/join ", STR);
+        define(LEAVE_ROOM, "LEAVE_ROOM", "/leave");
+        define(REQUEST_USERLIST, "REQUEST_USERLIST", "/users");
+        define(SEARCH, "SEARCH", "/search ", STR);
+    }
+
+    private static void define(byte type, String name, String textPrefix, byte... schema) {
+        SCHEMAS[type] = schema;
+        TEXT_PREFIXES[type] = textPrefix;
+        NAMES[type] = name;
+    }
+
+    private WireProtocol() {
+    }
+
+    /** The constant's name for an event or command type, as metrics report it; null for any other byte. */
+    static String name(byte type) {
+        return type >= 0 ? NAMES[type] : null;
+    }
+
+    /** The version 1 rendering of a server event: its prefix followed by the fields joined with ':'. */
+    static String toText(byte type, String... fields) {
+        return TEXT_PREFIXES[type] + String.join(":", fields);
+    }
+
+    /**
+     * Encodes a line typed into the client as the matching command frame, using the same prefixes and
+     * argument splitting the server applies to text commands. Returns null for a malformed command,
+     * which the server would have ignored as well.
+     */
+    static byte[] encodeCommand(String line) {
+        byte type = commandType(line);
+        if (type == SAY) return encode(SAY, line);
+        String prefix = TEXT_PREFIXES[type];
+        int arity = SCHEMAS[type].length;
+        if (arity == 0) return encode(type);
+        String[] parts = line.substring(prefix.length()).split(" ", arity);
+        return parts.length == arity ? encode(type, parts) : null;
+    }
+
+    /** The command a text line stands for: the first whose prefix it starts with, or {@link #SAY}. */
+    static byte commandType(String line) {
+        for (byte type : COMMANDS) {
+            String prefix = TEXT_PREFIXES[type];
+            int arity = SCHEMAS[type].length;
+            if (arity == 0 ? line.equals(prefix) : line.startsWith(prefix)) return type;
+        }
+        return SAY;
+    }
+
+    /** Encodes one frame. Ids that are not UUIDs are sent as all zeros. */
+    static byte[] encode(byte type, String... fields) {
+        byte[] schema = SCHEMAS[type];
+        if (schema == null || schema.length != fields.length) {
+            throw new IllegalArgumentException("Bad field count for frame type " + type);
+        }
+        byte[][] strings = new byte[fields.length][];
+        int payload = 0;
+        for (int i = 0; i < schema.length; i++) {
+            if (schema[i] == ID) {
+                payload += 16;
+            } else {
+                strings[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+                payload += varintSize(strings[i].length) + strings[i].length;
+            }
+        }
+        byte[] frame = new byte[1 + varintSize(payload) + payload];
+        int pos = 0;
+        frame[pos++] = type;
+        pos = writeVarint(frame, pos, payload);
+        for (int i = 0; i < schema.length; i++) {
+            if (schema[i] == ID) {
+                long[] id = parseId(fields[i]);
+                pos = writeLong(frame, pos, id[0]);
+                pos = writeLong(frame, pos, id[1]);
+            } else {
+                pos = writeVarint(frame, pos, strings[i].length);
+                System.arraycopy(strings[i], 0, frame, pos, strings[i].length);
+                pos += strings[i].length;
+            }
+        }
+        return frame;
+    }
+
+    private static long[] parseId(String id) {
+        try {
+            UUID uuid = UUID.fromString(id);
+            return new long[]{uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()};
+        } catch (IllegalArgumentException e) {
+            return new long[2];
+        }
+    }
+
+    /**
+     * Server side of {@link #COMPRESS}: collects one batch of outgoing lines or frames and turns it into a
+     * chunk. A batch of at least {@code minBytes} is deflated and sync-flushed, so the client can decode it
+     * as soon as it arrives while the stream keeps its window from one chunk to the next; smaller batches
+     * (a lone typing update, say) are not worth the CPU and go out raw. Not thread-safe: one per connection
+     * writer, which calls {@link #close} when the connection ends to free the native zlib state.
+     */
+    static final class Compressor {
+        private final Deflater deflater;
+        private final int minBytes;
+        private byte[] pending = new byte[8192];
+        private int length;
+        private byte[] output = new byte[8192];
+
+        Compressor(int level, int minBytes) {
+            this.deflater = new Deflater(level);
+            this.minBytes = minBytes;
+            deflater.setDictionary(DEFLATE_DICTIONARY);
+        }
+
+        /** Bytes collected since the last {@link #flush}. */
+        int pending() {
+            return length;
+        }
+
+        void write(byte[] bytes) {
+            write(ByteBuffer.wrap(bytes));
+        }
+
+        void write(ByteBuffer bytes) {
+            int incoming = bytes.remaining();
+            if (length + incoming > pending.length) pending = Arrays.copyOf(pending, Math.max(length + incoming, pending.length * 2));
+            bytes.get(pending, length, incoming);
+            length += incoming;
+        }
+
+        /** Everything collected so far as one chunk. */
+        ByteBuffer flush() {
+            byte flag;
+            byte[] body;
+            int size;
+            if (length < minBytes) {
+                flag = CHUNK_RAW;
+                body = pending;
+                size = length;
+            } else {
+                flag = CHUNK_DEFLATE;
+                deflater.setInput(pending, 0, length);
+                size = 0;
+                while (true) {
+                    size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+                    if (size < output.length) break;
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                body = output;
+            }
+            byte[] chunk = new byte[1 + varintSize(size) + size];
+            chunk[0] = flag;
+            int pos = writeVarint(chunk, 1, size);
+            System.arraycopy(body, 0, chunk, pos, size);
+            length = 0;
+            return ByteBuffer.wrap(chunk);
+        }
+
+        void close() {
+            deflater.end();
+        }
+    }
+
+    /** {@code text} with every CR and LF replaced by a space. */
+    static String singleLine(String text) {
+        return text.indexOf('\n') < 0 && text.indexOf('\r') < 0 ? text : text.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int writeLong(byte[] out, int pos, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    /** A decoded frame. The decoder reuses one instance, so handlers must not keep it. */
+    static final class Frame {
+        private byte type;
+        private int count;
+        private static final int MAX_FIELDS = 5; // PM has the most
+        private final String[] strings = new String[MAX_FIELDS];
+        private final long[] idHigh = new long[MAX_FIELDS];
+        private final long[] idLow = new long[MAX_FIELDS];
+        private final boolean[] isId = new boolean[MAX_FIELDS];
+
+        byte type() {
+            return type;
+        }
+
+        int fieldCount() {
+            return count;
+        }
+
+        /** Field {@code i} in its text-protocol form (ids as UUID strings). */
+        String field(int i) {
+            if (i >= count) throw new IndexOutOfBoundsException(i);
+            return isId[i] ? new UUID(idHigh[i], idLow[i]).toString() : strings[i];
+        }
+    }
+
+    /**
+     * Incremental decoder for one inbound byte stream: text lines until {@link #switchToBinary()},
+     * then version 2 frames. Bytes may arrive in arbitrary chunks.
+     */
+    static final class Decoder {
+        interface Handler {
+            void onLine(String line) throws IOException;
+
+            void onFrame(Frame frame) throws IOException;
+        }
+
+        private final int maxLength;
+        private byte[] pending = new byte[256];
+        private int length;
+        private boolean binary;
+        private final Frame frame = new Frame();
+        private Inflater inflater; // set once the peer's output is compressed
+        private byte[] chunks;
+        private int chunksLength;
+        private byte[] inflated;
+
+        Decoder(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        /** Takes effect from the next byte after the line currently being handled: input is {@link Compressor} chunks from then on. */
+        void switchToDeflate() {
+            inflater = new Inflater();
+            chunks = new byte[8192];
+            inflated = new byte[8192];
+        }
+
+        /** Takes effect from the next byte after the line currently being handled. */
+        void switchToBinary() {
+            binary = true;
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        void decode(ByteBuffer in, Handler handler) throws IOException {
+            while (in.hasRemaining()) {
+                if (inflater != null) {
+                    decodeChunks(in, handler);
+                } else if (binary) {
+                    decodeFrames(in, handler);
+                } else {
+                    decodeLine(in, handler);
+                }
+            }
+        }
+
+        private void decodeLine(ByteBuffer in, Handler handler) throws IOException {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    int end = length > 0 && pending[length - 1] == '\r' ? length - 1 : length;
+                    String line = singleLine(new String(pending, 0, end, StandardCharsets.UTF_8));
+                    length = 0;
+                    handler.onLine(line);
+                    return; // the line may have switched the protocol
+                }
+                append(b);
+            }
+        }
+
+        private void append(byte b) throws IOException {
+            if (length == pending.length) grow(length + 1);
+            pending[length++] = b;
+        }
+
+        private void grow(int needed) throws IOException {
+            if (needed > maxLength + 16) throw new IOException("Inbound data exceeds " + maxLength + " bytes");
+            pending = Arrays.copyOf(pending, Math.min(Math.max(needed, pending.length * 2), maxLength + 16));
+        }
+
+        private void decodeFrames(ByteBuffer in, Handler handler) throws IOException {
+            int incoming = in.remaining();
+            if (length + incoming > pending.length) grow(length + incoming);
+            in.get(pending, length, incoming);
+            length += incoming;
+
+            int pos = 0;
+            while (true) {
+                int start = pos;
+                if (pos >= length) break;
+                byte type = pending[pos++];
+                int payload = 0;
+                int shift = 0;
+                boolean complete = false;
+                while (pos < length && shift < 35) {
+                    byte b = pending[pos++];
+                    payload |= (b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                }
+                if (!complete) {
+                    if (shift >= 35) throw new IOException("Malformed frame length");
+                    pos = start;
+                    break;
+                }
+                if (payload < 0 || payload > maxLength) throw new IOException("Frame exceeds " + maxLength + " bytes");
+                if (length - pos < payload) {
+                    pos = start;
+                    break;
+                }
+                parse(type, pos, pos + payload);
+                pos += payload;
+                handler.onFrame(frame);
+            }
+            System.arraycopy(pending, pos, pending, 0, length - pos);
+            length -= pos;
+        }
+
+        /** Splits input into chunks and feeds each one's contents, inflated if need be, back through {@link #decode}. */
+        private void decodeChunks(ByteBuffer in, Handler handler) throws IOException {
+            int incoming = in.remaining();
+            if (chunksLength + incoming > chunks.length) {
+                if (chunksLength + incoming > 4 * maxLength + 16) throw new IOException("Compressed chunk exceeds " + 4 * maxLength + " bytes");
+                chunks = Arrays.copyOf(chunks, Math.min(Math.max(chunksLength + incoming, chunks.length * 2), 4 * maxLength + 16));
+            }
+            in.get(chunks, chunksLength, incoming);
+            chunksLength += incoming;
+
+            int pos = 0;
+            while (pos < chunksLength) {
+                int start = pos;
+                byte flag = chunks[pos++];
+                int size = 0;
+                int shift = 0;
+                boolean complete = false;
+                while (pos < chunksLength && shift < 35) {
+                    byte b = chunks[pos++];
+                    size |= (b & 0x7F) << shift;
+                    shift += 7;
+                    if ((b & 0x80) == 0) {
+                        complete = true;
+                        break;
+                    }
+                }
+                if (!complete && shift >= 35) throw new IOException("Malformed chunk length");
+                if (!complete || chunksLength - pos < size) {
+                    pos = start;
+                    break;
+                }
+                if (flag == CHUNK_RAW) {
+                    decodeContents(ByteBuffer.wrap(chunks, pos, size), handler);
+                } else if (flag == CHUNK_DEFLATE) {
+                    inflate(pos, size, handler);
+                } else {
+                    throw new IOException("Unknown chunk type " + flag);
+                }
+                pos += size;
+            }
+            System.arraycopy(chunks, pos, chunks, 0, chunksLength - pos);
+            chunksLength -= pos;
+        }
+
+        private void inflate(int offset, int size, Handler handler) throws IOException {
+            inflater.setInput(chunks, offset, size);
+            try {
+                while (true) {
+                    int produced = inflater.inflate(inflated);
+                    if (produced == 0) {
+                        if (!inflater.needsDictionary()) break;
+                        inflater.setDictionary(DEFLATE_DICTIONARY);
+                        continue;
+                    }
+                    decodeContents(ByteBuffer.wrap(inflated, 0, produced), handler);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed chunk: " + e.getMessage());
+            }
+        }
+
+        private void decodeContents(ByteBuffer in, Handler handler) throws IOException {
+            while (in.hasRemaining()) {
+                if (binary) {
+                    decodeFrames(in, handler);
+                } else {
+                    decodeLine(in, handler);
+                }
+            }
+        }
+
+        private void parse(byte type, int pos, int end) throws IOException {
+            byte[] schema = type >= 0 ? SCHEMAS[type] : null;
+            if (schema == null) throw new IOException("Unknown frame type " + type);
+            frame.type = type;
+            frame.count = schema.length;
+            for (int i = 0; i < schema.length; i++) {
+                if (schema[i] == ID) {
+                    if (end - pos < 16) throw new IOException("Truncated frame");
+                    frame.isId[i] = true;
+                    frame.idHigh[i] = readLong(pos);
+                    frame.idLow[i] = readLong(pos + 8);
+                    pos += 16;
+                } else {
+                    int len = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        if (pos >= end || shift >= 35) throw new IOException("Truncated frame");
+                        b = pending[pos++];
+                        len |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    if (len < 0 || end - pos < len) throw new IOException("Truncated frame");
+                    frame.isId[i] = false;
+                    frame.strings[i] = singleLine(new String(pending, pos, len, StandardCharsets.UTF_8));
+                    pos += len;
+                }
+            }
+        }
+
+        private long readLong(int pos) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (pending[pos + i] & 0xFF);
+            }
+            return value;
+        }
+    }
+}
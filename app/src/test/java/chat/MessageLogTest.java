@@ -0,0 +1,166 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private final Map<String, Room> restored = new HashMap<>();
+
+    @AfterEach
+    void forgetRooms() {
+        ChatServer.rooms.clear();
+    }
+
+    private static OutboundMessage message(int n, String text) {
+        return OutboundMessage.event(WireProtocol.MSG, new UUID(0, n).toString(), "alice", "12:00:00", text);
+    }
+
+    private long replay() throws IOException {
+        restored.clear();
+        return new MessageLog(dir, SEGMENT_BYTES, 10, 0).replay(name -> restored.computeIfAbsent(name, n -> new Room(n, 100)));
+    }
+
+    private List<String> history(String room) {
+        List<String> texts = new ArrayList<>();
+        restored.get(room).history.forEach(message -> texts.add(message.field(3)));
+        return texts;
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    @Test
+    void replayRebuildsHistoryEditsDeletesAndPinsPerRoom() throws IOException {
+        MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 10, 0);
+        log.replay(name -> new Room(name, 100));
+        log.start();
+        for (int n = 1; n <= 3; n++) log.append("general", n, message(n, "text " + n));
+        log.append("other", 1, message(10, "elsewhere"));
+        log.edit("general", OutboundMessage.event(WireProtocol.MSG, new UUID(0, 2).toString(), "alice", "12:00:00[Edited]", "edited"));
+        log.delete("general", new UUID(0, 1).toString());
+        log.pin("general", OutboundMessage.event(WireProtocol.PIN, new UUID(0, 3).toString(), "alice", "12:00:00", "text 3"));
+        log.close();
+
+        assertEquals(7, replay());
+        assertEquals(List.of("edited", "text 3"), history("general"));
+        assertEquals(List.of("elsewhere"), history("other"));
+        assertEquals(List.of(new UUID(0, 3).toString()), List.copyOf(restored.get("general").pins.keySet()));
+        assertEquals(3, restored.get("general").history.seqOf(new UUID(0, 3).toString()));
+        assertEquals(4, restored.get("general").history.nextSeq());
+    }
+
+    @Test
+    void replayStopsAtATornTail() throws IOException {
+        MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 10, 0);
+        log.replay(name -> new Room(name, 100));
+        log.start();
+        for (int n = 1; n <= 3; n++) log.append("general", n, message(n, "text " + n));
+        log.close();
+        Path segment = files(".log").get(0);
+        long lastRecord = recordOffsets(segment).get(2);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), lastRecord + 12); // a half-written last record
+        }
+
+        assertEquals(2, replay());
+        assertEquals(List.of("text 1", "text 2"), history("general"));
+    }
+
+    @Test
+    void emptySegmentsAreDeletedOnReplay() throws IOException {
+        MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 10, 0);
+        log.replay(name -> new Room(name, 100));
+        log.start();
+        log.close();
+
+        assertEquals(1, files(".log").size());
+        assertEquals(0, replay());
+        assertEquals(List.of(), files(".log"));
+    }
+
+    @Test
+    void recordsLargerThanASegmentGetOneOfTheirOwn() throws IOException {
+        MessageLog log = new MessageLog(dir, 256, 10, 0);
+        log.replay(name -> new Room(name, 100));
+        log.start();
+        log.append("general", 1, message(1, "small"));
+        log.append("general", 2, message(2, "x".repeat(10_000)));
+        log.append("general", 3, message(3, "after"));
+        log.close();
+
+        assertEquals(3, replay());
+        assertEquals(List.of("small", "x".repeat(10_000), "after"), history("general"));
+        assertTrue(files(".log").size() >= 2);
+    }
+
+    @Test
+    void compactionKeepsOnlyLiveHistoryAndLaterRecordsStillApply() throws Exception {
+        Room room = new Room("compacted", 100);
+        ChatServer.rooms.put(room.name, room);
+        MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 10, 200);
+        log.replay(name -> room);
+        log.start();
+        room.lock.lock();
+        try {
+            for (int n = 1; n <= 5; n++) {
+                OutboundMessage message = message(n, "text " + n);
+                log.append(room.name, room.history.append(message), message);
+            }
+            room.history.remove(new UUID(0, 1).toString());
+            log.delete(room.name, new UUID(0, 1).toString());
+        } finally {
+            room.lock.unlock();
+        }
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (files(".compact").isEmpty() && System.nanoTime() < deadline) Thread.sleep(50);
+        room.lock.lock();
+        try {
+            OutboundMessage message = message(6, "after compaction");
+            log.append(room.name, room.history.append(message), message);
+        } finally {
+            room.lock.unlock();
+        }
+        log.close();
+
+        assertEquals(1, files(".compact").size());
+        assertEquals(5, replay()); // four live messages from the compacted segment, one appended after it
+        assertEquals(List.of("text 2", "text 3", "text 4", "text 5", "after compaction"), history("compacted"));
+        assertEquals(6, restored.get("compacted").history.seqOf(new UUID(0, 6).toString()));
+    }
+
+    /** Offsets of the records in a segment, read from their length headers. */
+    private static List<Long> recordOffsets(Path segment) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Long> offsets = new ArrayList<>();
+        while (bytes.remaining() >= 8) {
+            int length = bytes.getInt(bytes.position());
+            if (length <= 0) break;
+            offsets.add((long) bytes.position());
+            bytes.position(bytes.position() + 8 + length);
+        }
+        return offsets;
+    }
+}
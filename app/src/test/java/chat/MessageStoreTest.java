@@ -0,0 +1,142 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class MessageStoreTest {
+    private static OutboundMessage message(int n) {
+        return OutboundMessage.event(WireProtocol.MSG, new UUID(0, n).toString(), "alice", "12:00:00", "text " + n);
+    }
+
+    private static String id(int n) {
+        return new UUID(0, n).toString();
+    }
+
+    private static List<String> texts(MessageStore store) {
+        List<String> texts = new ArrayList<>();
+        store.forEach(message -> texts.add(message.field(3)));
+        return texts;
+    }
+
+    private static List<String> texts(List<OutboundMessage> messages) {
+        return messages.stream().map(message -> message.field(3)).toList();
+    }
+
+    @Test
+    void appendsGetAscendingSequenceNumbers() {
+        MessageStore store = new MessageStore(10);
+
+        assertEquals(1, store.append(message(1)));
+        assertEquals(2, store.append(message(2)));
+        assertEquals(3, store.nextSeq());
+        assertEquals(2, store.size());
+        assertEquals("text 2", store.get(id(2)).field(3));
+        assertEquals(1, store.seqOf(id(1)));
+        assertNull(store.get(id(3)));
+        assertEquals(-1, store.seqOf(id(3)));
+    }
+
+    @Test
+    void growsPastItsInitialSlotsThenEvictsTheOldest() {
+        MessageStore store = new MessageStore(40);
+        for (int n = 1; n <= 100; n++) store.append(message(n));
+
+        assertEquals(40, store.size());
+        assertEquals(40, store.capacity());
+        assertNull(store.get(id(60)));
+        assertEquals(-1, store.seqOf(id(60)));
+        assertEquals(61, store.seqOf(id(61)));
+        List<String> expected = new ArrayList<>();
+        for (int n = 61; n <= 100; n++) expected.add("text " + n);
+        assertEquals(expected, texts(store));
+    }
+
+    @Test
+    void keepsEverythingWhileGrowingBelowCapacity() {
+        MessageStore store = new MessageStore(1000);
+        for (int n = 1; n <= 300; n++) store.append(message(n));
+
+        assertEquals(300, store.size());
+        assertEquals("text 1", store.get(id(1)).field(3));
+        assertEquals("text 300", store.get(id(300)).field(3));
+    }
+
+    @Test
+    void editsReplaceInPlaceAndDeletesKeepTheIdAsACursor() {
+        MessageStore store = new MessageStore(10);
+        for (int n = 1; n <= 3; n++) store.append(message(n));
+
+        assertTrue(store.replace(OutboundMessage.event(WireProtocol.MSG, id(2), "alice", "12:00:00[Edited]", "changed")));
+        assertEquals("text 1", store.remove(id(1)).field(3));
+        assertNull(store.remove(id(1)));
+
+        assertEquals(List.of("changed", "text 3"), texts(store));
+        assertEquals(2, store.size());
+        assertNull(store.get(id(1)));
+        assertEquals(1, store.seqOf(id(1)));
+        assertFalse(store.replace(message(1)));
+    }
+
+    @Test
+    void pagesForwardAndBackwardSkippingDeletedMessages() {
+        MessageStore store = new MessageStore(100);
+        for (int n = 1; n <= 10; n++) store.append(message(n));
+        store.remove(id(5));
+
+        List<OutboundMessage> newer = new ArrayList<>();
+        assertTrue(store.after(store.seqOf(id(2)), 3, newer));
+        assertEquals(List.of("text 3", "text 4", "text 6"), texts(newer));
+
+        List<OutboundMessage> older = new ArrayList<>();
+        assertTrue(store.before(store.seqOf(id(7)), 3, older));
+        assertEquals(List.of("text 3", "text 4", "text 6"), texts(older));
+
+        List<OutboundMessage> rest = new ArrayList<>();
+        assertFalse(store.before(store.seqOf(id(3)), 3, rest));
+        assertEquals(List.of("text 1", "text 2"), texts(rest));
+
+        List<OutboundMessage> latest = new ArrayList<>();
+        assertFalse(store.after(store.seqOf(id(8)), 3, latest));
+        assertEquals(List.of("text 9", "text 10"), texts(latest));
+    }
+
+    @Test
+    void restoresAcrossGapsLeftByCompaction() {
+        MessageStore store = new MessageStore(50);
+        store.restore(5, message(5));
+        store.restore(9, message(9));
+        store.restore(40, message(40));
+
+        assertEquals(List.of("text 5", "text 9", "text 40"), texts(store));
+        assertEquals(41, store.nextSeq());
+
+        store.restore(58, message(58)); // pushes 5 (below 58 - 50 + 1) out of the ring
+        assertEquals(List.of("text 9", "text 40", "text 58"), texts(store));
+        assertEquals(-1, store.seqOf(id(5)));
+        assertEquals(59, store.append(message(59)));
+    }
+
+    @Test
+    void restoreIgnoresMessagesAlreadyOutOfTheWindow() {
+        MessageStore store = new MessageStore(10);
+        store.restore(100, message(100));
+        store.restore(80, message(80));
+
+        assertEquals(List.of("text 100"), texts(store));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void restoreAfterAGapLongerThanTheRingHidesOlderOccupants() {
+        MessageStore store = new MessageStore(16);
+        for (int n = 1; n <= 16; n++) store.append(message(n));
+        store.restore(40, message(40));
+
+        assertEquals(List.of("text 40"), texts(store));
+        assertEquals(1, store.size());
+    }
+}
@@ -0,0 +1,114 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class SearchIndexTest {
+    private static OutboundMessage message(int n, String sender, String time, String text) {
+        return OutboundMessage.event(WireProtocol.MSG, new UUID(0, n).toString(), sender, time, text);
+    }
+
+    private static List<String> search(MessageStore store, String query, long beforeSeq, int limit, boolean[] more) {
+        List<OutboundMessage> page = new ArrayList<>();
+        more[0] = store.search(SearchIndex.Query.parse(query), beforeSeq, limit, page);
+        return page.stream().map(message -> message.field(3)).toList();
+    }
+
+    private static List<String> search(MessageStore store, String query) {
+        return search(store, query, Long.MAX_VALUE, 100, new boolean[1]);
+    }
+
+    @Test
+    void termsAreLowerCasedWordsOfLettersAndDigits() {
+        assertEquals(Set.of("hello", "world", "42", "naïve"), SearchIndex.terms("Hello, WORLD! 42 naïve hello"));
+        assertEquals(64, SearchIndex.terms("a".repeat(100)).iterator().next().length());
+        assertTrue(SearchIndex.terms(" -- ").isEmpty());
+    }
+
+    @Test
+    void queriesSplitIntoTermsFiltersAndACursor() {
+        SearchIndex.Query query = SearchIndex.Query.parse("  Deploy from:Bob after:09:30 before:17:00:30 cursor:abc deploy-NOW ");
+
+        assertEquals(List.of("deploy", "from:bob", "now"), query.terms().stream().sorted().toList());
+        assertEquals("09:30:00", query.after());
+        assertEquals("17:00:30", query.before());
+        assertEquals("abc", query.cursor());
+        assertTrue(query.matchesTime("10:00:00"));
+        assertTrue(query.matchesTime("09:30:00[Edited]"));
+        assertFalse(query.matchesTime("09:29:59"));
+        assertFalse(query.matchesTime("17:00:30"));
+    }
+
+    @Test
+    void findsMessagesWithEveryTermNewestFirst() {
+        MessageStore store = new MessageStore(100);
+        store.append(message(1, "alice", "10:00:00", "the build is red"));
+        store.append(message(2, "bob", "10:01:00", "build fixed"));
+        store.append(message(3, "alice", "10:02:00", "Build is GREEN"));
+        store.append(message(4, "carol", "10:03:00", "lunch?"));
+
+        assertEquals(List.of("Build is GREEN", "build fixed", "the build is red"), search(store, "build"));
+        assertEquals(List.of("Build is GREEN", "the build is red"), search(store, "is build"));
+        assertEquals(List.of("Build is GREEN", "the build is red"), search(store, "from:alice build"));
+        assertEquals(List.of("build fixed"), search(store, "build after:10:01 before:10:02"));
+        assertEquals(List.of(), search(store, "build lunch"));
+        assertEquals(List.of(), search(store, "nothing"));
+    }
+
+    @Test
+    void pagesContinueBelowTheLastResult() {
+        MessageStore store = new MessageStore(100);
+        for (int n = 1; n <= 10; n++) store.append(message(n, "alice", "10:00:00", "ping " + n));
+        boolean[] more = new boolean[1];
+
+        assertEquals(List.of("ping 10", "ping 9", "ping 8"), search(store, "ping", Long.MAX_VALUE, 3, more));
+        assertTrue(more[0]);
+        long cursor = store.seqOf(new UUID(0, 8).toString());
+        assertEquals(List.of("ping 7", "ping 6", "ping 5"), search(store, "ping", cursor, 3, more));
+        assertTrue(more[0]);
+        assertEquals(List.of("ping 1"), search(store, "ping", store.seqOf(new UUID(0, 2).toString()), 3, more));
+        assertFalse(more[0]);
+    }
+
+    @Test
+    void editsDeletesAndEvictionsKeepTheIndexCurrent() {
+        MessageStore store = new MessageStore(3);
+        store.append(message(1, "alice", "10:00:00", "apple"));
+        store.append(message(2, "alice", "10:00:00", "apple banana"));
+        store.append(message(3, "alice", "10:00:00", "apple cherry"));
+
+        store.replace(message(2, "alice", "10:00:00[Edited]", "durian"));
+        assertEquals(List.of("apple cherry", "apple"), search(store, "apple"));
+        assertEquals(List.of("durian"), search(store, "durian"));
+        assertEquals(List.of(), search(store, "banana"));
+
+        store.remove(new UUID(0, 3).toString());
+        assertEquals(List.of("apple"), search(store, "apple"));
+
+        store.append(message(4, "bob", "10:00:00", "elderberry")); // evicts message 1
+        assertEquals(List.of(), search(store, "apple"));
+        assertEquals(List.of("elderberry"), search(store, "from:bob"));
+        assertEquals(List.of(), search(store, "from:alice apple"));
+    }
+
+    @Test
+    void intersectsLongAndShortPostingLists() {
+        MessageStore store = new MessageStore(10_000);
+        for (int n = 1; n <= 5000; n++) {
+            store.append(message(n, "user" + n % 7, "10:00:00", "common " + (n % 100 == 0 ? "rare" : "filler")));
+        }
+
+        List<String> matches = search(store, "rare common from:user3");
+        List<String> expected = new ArrayList<>();
+        for (int n = 5000; n >= 1; n--) {
+            if (n % 100 == 0 && n % 7 == 3) expected.add("common rare");
+        }
+        assertEquals(expected, matches);
+        assertFalse(matches.isEmpty());
+    }
+}
@@ -0,0 +1,191 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class WireProtocolTest {
+    /** Records what a decoder hands out; frames are copied, as the decoder reuses them. */
+    private static final class Collector implements WireProtocol.Decoder.Handler {
+        final List<String> lines = new ArrayList<>();
+        final List<List<String>> frames = new ArrayList<>();
+        final List<Byte> types = new ArrayList<>();
+        WireProtocol.Decoder switchOnLine; // switched to binary by the first line, like the server does
+
+        @Override
+        public void onLine(String line) {
+            lines.add(line);
+            if (switchOnLine != null) switchOnLine.switchToBinary();
+        }
+
+        @Override
+        public void onFrame(WireProtocol.Frame frame) {
+            List<String> fields = new ArrayList<>();
+            for (int i = 0; i < frame.fieldCount(); i++) fields.add(frame.field(i));
+            types.add(frame.type());
+            frames.add(fields);
+        }
+    }
+
+    private static Collector decodeBinary(byte[] bytes, int chunk) throws IOException {
+        WireProtocol.Decoder decoder = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+        decoder.switchToBinary();
+        Collector collector = new Collector();
+        for (int pos = 0; pos < bytes.length; pos += chunk) {
+            decoder.decode(ByteBuffer.wrap(bytes, pos, Math.min(chunk, bytes.length - pos)), collector);
+        }
+        return collector;
+    }
+
+    @Test
+    void frameRoundTripsWithIdsAsUuids() throws IOException {
+        String id = UUID.randomUUID().toString();
+        byte[] frame = WireProtocol.encode(WireProtocol.MSG, id, "alice", "12:34:56", "hello: world");
+
+        Collector collector = decodeBinary(frame, frame.length);
+
+        assertEquals(List.of(WireProtocol.MSG), collector.types);
+        assertEquals(List.of(List.of(id, "alice", "12:34:56", "hello: world")), collector.frames);
+        assertEquals(1 + 1 + 16 + 6 + 9 + 13, frame.length);
+    }
+
+    @Test
+    void framesSplitAcrossReadsDecodeTheSame() throws IOException {
+        String longText = "x".repeat(20_000); // a three-byte varint inside a three-byte frame length
+        byte[] first = WireProtocol.encode(WireProtocol.SAY, longText);
+        byte[] second = WireProtocol.encode(WireProtocol.SEND_PM, "bob", "é".repeat(100));
+        byte[] both = ByteBuffer.allocate(first.length + second.length).put(first).put(second).array();
+
+        for (int chunk : new int[]{1, 2, 7, 128, both.length}) {
+            Collector collector = decodeBinary(both, chunk);
+            assertEquals(List.of(WireProtocol.SAY, WireProtocol.SEND_PM), collector.types, "chunk " + chunk);
+            assertEquals(List.of(List.of(longText), List.of("bob", "é".repeat(100))), collector.frames, "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void idThatIsNotAUuidIsSentAsZeros() throws IOException {
+        Collector collector = decodeBinary(WireProtocol.encode(WireProtocol.DELETE_MESSAGE, "not-a-uuid"), 64);
+
+        assertEquals(List.of(List.of(new UUID(0, 0).toString())), collector.frames);
+    }
+
+    @Test
+    void encodeRejectsWrongFieldCount() {
+        assertThrows(IllegalArgumentException.class, () -> WireProtocol.encode(WireProtocol.MSG, "only one"));
+    }
+
+    @Test
+    void commandsAreEncodedWithTheServersArgumentSplitting() throws IOException {
+        byte[] pm = WireProtocol.encodeCommand("/pm bob see you at 5");
+        byte[] typing = WireProtocol.encodeCommand("/typing");
+        byte[] say = WireProtocol.encodeCommand("/pmnotacommand");
+
+        assertEquals(List.of(List.of("bob", "see you at 5")), decodeBinary(pm, 64).frames);
+        assertEquals(List.of(WireProtocol.START_TYPING), decodeBinary(typing, 64).types);
+        assertEquals(WireProtocol.SEND_PM, WireProtocol.commandType("/pm bob hi"));
+        assertEquals(WireProtocol.SAY, WireProtocol.commandType("hello /pm"));
+        assertEquals(List.of(WireProtocol.SAY), decodeBinary(say, 64).types);
+        assertNull(WireProtocol.encodeCommand("/pm bob"));
+    }
+
+    @Test
+    void lineBreaksInsideFieldsBecomeSpaces() throws IOException {
+        byte[] frame = WireProtocol.encode(WireProtocol.SAY, "hi\nUSERLIST:mallory\r\nSUBMIT_USERNAME");
+
+        Collector collector = decodeBinary(frame, frame.length);
+
+        assertEquals(List.of(List.of("hi USERLIST:mallory  SUBMIT_USERNAME")), collector.frames);
+        assertEquals("MSG:id:alice:t:a b", WireProtocol.toText(WireProtocol.MSG, "id", "alice", "t", WireProtocol.singleLine("a\rb")));
+    }
+
+    @Test
+    void textLinesStripCarriageReturnsAndSwitchToFramesMidBuffer() throws IOException {
+        WireProtocol.Decoder decoder = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+        Collector collector = new Collector();
+        collector.switchOnLine = decoder;
+        byte[] line = "key PROTO=2\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = WireProtocol.encode(WireProtocol.SAY, "after the switch");
+
+        decoder.decode(ByteBuffer.wrap(ByteBuffer.allocate(line.length + frame.length).put(line).put(frame).array()), collector);
+
+        assertEquals(List.of("key PROTO=2"), collector.lines);
+        assertEquals(List.of(List.of("after the switch")), collector.frames);
+        assertTrue(decoder.isBinary());
+    }
+
+    @Test
+    void oversizedOrMalformedInputIsRejected() {
+        byte[] tooLong = {WireProtocol.SAY, (byte) 0xFF, (byte) 0xFF, (byte) 0x7F};
+        byte[] badLength = {WireProtocol.SAY, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0};
+        byte[] unknownType = {0x7E, 0};
+        byte[] truncatedField = {WireProtocol.SAY, 2, 5, 'a'};
+
+        for (byte[] input : new byte[][]{tooLong, badLength, unknownType, truncatedField}) {
+            assertThrows(IOException.class, () -> decodeBinary(input, input.length));
+        }
+        WireProtocol.Decoder text = new WireProtocol.Decoder(100);
+        assertThrows(IOException.class, () -> text.decode(ByteBuffer.wrap(new byte[1000]), new Collector()));
+    }
+
+    @Test
+    void compressedChunksDecodeToTheOriginalLinesAndFrames() throws IOException {
+        WireProtocol.Compressor compressor = new WireProtocol.Compressor(1, 256);
+        List<byte[]> chunks = new ArrayList<>();
+        compressor.write("USERNAME_ACCEPTED PROTO=2\n".getBytes(StandardCharsets.UTF_8));
+        chunks.add(toArray(compressor.flush())); // too small to be worth deflating
+        List<String> history = new ArrayList<>();
+        for (int round = 0; round < 2; round++) { // the second chunk refers back into the first
+            for (int i = 0; i < 50; i++) {
+                String text = "message number " + i + " in the history";
+                history.add(text);
+                compressor.write(WireProtocol.encode(WireProtocol.HISTORY, new UUID(round, i).toString(), "alice", "12:00:00", text));
+            }
+            chunks.add(toArray(compressor.flush()));
+        }
+        compressor.close();
+
+        assertEquals(0, chunks.get(0)[0]);
+        assertEquals(1, chunks.get(1)[0]);
+        assertTrue(chunks.get(2).length < chunks.get(1).length, "the window carries over between chunks");
+        int total = chunks.stream().mapToInt(chunk -> chunk.length).sum();
+        ByteBuffer stream = ByteBuffer.allocate(total);
+        chunks.forEach(stream::put);
+        for (int split : new int[]{1, 5, total}) {
+            WireProtocol.Decoder decoder = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+            decoder.switchToDeflate();
+            Collector collector = new Collector();
+            collector.switchOnLine = decoder;
+            for (int pos = 0; pos < total; pos += split) {
+                decoder.decode(ByteBuffer.wrap(stream.array(), pos, Math.min(split, total - pos)), collector);
+            }
+            assertEquals(List.of("USERNAME_ACCEPTED PROTO=2"), collector.lines, "split " + split);
+            assertEquals(history, collector.frames.stream().map(fields -> fields.get(3)).toList(), "split " + split);
+        }
+    }
+
+    @Test
+    void corruptCompressedChunkIsRejected() throws IOException {
+        WireProtocol.Compressor compressor = new WireProtocol.Compressor(1, 0);
+        compressor.write("SYNC:reset\n".repeat(10).getBytes(StandardCharsets.UTF_8));
+        byte[] chunk = toArray(compressor.flush());
+        compressor.close();
+        for (int i = chunk[1] < 0 ? 3 : 2; i < chunk.length; i++) chunk[i] ^= 0x55; // keep the flag and length
+
+        WireProtocol.Decoder decoder = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+        decoder.switchToDeflate();
+        assertThrows(IOException.class, () -> decoder.decode(ByteBuffer.wrap(chunk), new Collector()));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,57 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Private-message encryption on one thread: the original path, which looked up an AES/ECB cipher and built
+ * its key for every message, against {@link MessageCipher}.
+ *
+ * <pre>java -jar benchmarks/target/benchmarks.jar CipherBenchmark -p length=64</pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherBenchmark {
+    private static final String KEY = "0123456789abcdef";
+
+    @Param("64")
+    public int length;
+
+    private MessageCipher cipher;
+    private String message;
+    private String sealed;
+
+    @Setup
+    public void setUp() {
+        cipher = new MessageCipher(KEY);
+        message = "x".repeat(length);
+        sealed = cipher.encrypt(message);
+    }
+
+    /** What ChatSession.encryptMessage used to do for every PM. */
+    @Benchmark
+    public String perMessageAesEcb() throws Exception {
+        SecretKeySpec secretKey = new SecretKeySpec(KEY.getBytes(), "AES");
+        Cipher aes = Cipher.getInstance("AES");
+        aes.init(Cipher.ENCRYPT_MODE, secretKey);
+        return Base64.getEncoder().encodeToString(aes.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return cipher.encrypt(message);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return cipher.decrypt(sealed);
+    }
+}
@@ -0,0 +1,124 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Measures what {@link WireProtocol#COMPRESS} saves and costs, in both protocol versions: a join replay of
+ * {@code --page} history messages sent as one chunk on a fresh connection, live messages sent one chunk
+ * each on a connection that has been running for a while, and typing updates, which stay under
+ * {@code --min-bytes} and go out raw. For each it prints bytes on the wire with and without compression
+ * and the time to compress and to decode one chunk.
+ *
+ * <pre>java -cp benchmarks/target/benchmarks.jar chat.CompressionBenchmark --page=100 --level=1 --min-bytes=256 --rounds=2000</pre>
+ */
+public class CompressionBenchmark {
+    private static final String[] USERS = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "heidi"};
+    private static final String[] WORDS = ("the deploy is green again can you check the logs before lunch I think the "
+            + "cache warmed up fine but latency on the search page looks high let me know when the release is out").split(" ");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length == 2 ? kv[1] : "true");
+        }
+        int page = Integer.parseInt(options.getOrDefault("page", "100"));
+        int level = Integer.parseInt(options.getOrDefault("level", "1"));
+        int minBytes = Integer.parseInt(options.getOrDefault("min-bytes", "256"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "2000"));
+
+        Random random = new Random(42);
+        List<OutboundMessage> history = new ArrayList<>();
+        for (int i = 0; i < page + rounds; i++) history.add(message(random));
+        OutboundMessage typing = OutboundMessage.event(WireProtocol.TYPING, "alice,bob");
+
+        System.out.printf("%-16s %-8s %12s %12s %8s %14s %14s%n", "scenario", "protocol", "raw bytes", "sent bytes", "saved", "compress us", "decode us");
+        for (int round = 0; round < 2; round++) { // the first round only warms up the JIT
+            boolean report = round == 1;
+            for (boolean binary : new boolean[]{false, true}) {
+                String protocol = binary ? "v2" : "v1 text";
+                // Join replay: each round is a new connection, so a new compressor with only the dictionary to go on
+                Measurement replay = new Measurement();
+                for (int r = 0; r < rounds / 10; r++) {
+                    WireProtocol.Compressor compressor = new WireProtocol.Compressor(level, minBytes);
+                    replay.chunk(compressor, history.subList(0, page), binary);
+                    compressor.close();
+                    Measurement.decoders.remove(compressor);
+                }
+                replay.report(report, "join replay", protocol);
+
+                // Live traffic: one long-lived connection, one message per chunk
+                Measurement live = new Measurement();
+                WireProtocol.Compressor compressor = new WireProtocol.Compressor(level, minBytes);
+                for (int r = 0; r < rounds; r++) live.chunk(compressor, history.subList(page + r, page + r + 1), binary);
+                live.report(report, "live message", protocol);
+
+                Measurement typingUpdates = new Measurement();
+                for (int r = 0; r < rounds; r++) typingUpdates.chunk(compressor, List.of(typing), binary);
+                typingUpdates.report(report, "typing update", protocol);
+                compressor.close();
+                Measurement.decoders.remove(compressor);
+            }
+        }
+    }
+
+    private static OutboundMessage message(Random random) {
+        StringBuilder text = new StringBuilder();
+        for (int w = 4 + random.nextInt(12); w > 0; w--) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        String timestamp = String.format("%02d:%02d:%02d", 9 + random.nextInt(9), random.nextInt(60), random.nextInt(60));
+        return OutboundMessage.event(WireProtocol.MSG, UUID.randomUUID().toString(), USERS[random.nextInt(USERS.length)], timestamp, text.toString().trim());
+    }
+
+    /** Totals over many chunks sent on one or more connections, each decoded by its own client-side decoder. */
+    private static final class Measurement {
+        private static final Map<WireProtocol.Compressor, WireProtocol.Decoder> decoders = new IdentityHashMap<>(); // a client per connection
+        private long rawBytes;
+        private long sentBytes;
+        private long compressNanos;
+        private long decodeNanos;
+        private int chunks;
+        private int events;
+
+        void chunk(WireProtocol.Compressor compressor, List<OutboundMessage> messages, boolean binary) throws IOException {
+            WireProtocol.Decoder decoder = decoders.computeIfAbsent(compressor, c -> {
+                WireProtocol.Decoder d = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+                if (binary) d.switchToBinary();
+                d.switchToDeflate();
+                return d;
+            });
+            long start = System.nanoTime();
+            for (OutboundMessage message : messages) {
+                byte[] bytes = message.bytes(binary);
+                rawBytes += bytes.length;
+                compressor.write(bytes);
+            }
+            ByteBuffer chunk = compressor.flush();
+            compressNanos += System.nanoTime() - start;
+            sentBytes += chunk.remaining();
+
+            start = System.nanoTime();
+            decoder.decode(chunk, new WireProtocol.Decoder.Handler() {
+                @Override
+                public void onLine(String line) {
+                    events++;
+                }
+
+                @Override
+                public void onFrame(WireProtocol.Frame frame) {
+                    events++;
+                }
+            });
+            decodeNanos += System.nanoTime() - start;
+            chunks++;
+            if (events != chunks * messages.size()) throw new IllegalStateException("Decoded " + events + " events from " + chunks + " chunks");
+        }
+
+        void report(boolean report, String scenario, String protocol) {
+            if (!report) return;
+            System.out.printf("%-16s %-8s %,12d %,12d %7.1f%% %14.2f %14.2f%n", scenario, protocol, rawBytes, sentBytes,
+                    100.0 * (rawBytes - sentBytes) / rawBytes, compressNanos / 1e3 / chunks, decodeNanos / 1e3 / chunks);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package chat;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a {@link ChatServer} in-process with the requested engine, connects a number of clients
+ * and measures how long they take to join, how many server threads that costs and how quickly a
+ * public message reaches every recipient.
+ *
+ * <pre>java -cp benchmarks/target/benchmarks.jar chat.EngineBenchmark --engine=virtual --clients=500 --messages=200</pre>
+ */
+public class EngineBenchmark {
+    private static final String KEY = "0123456789abcdef";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length == 2 ? kv[1] : "true");
+        }
+        String engine = options.getOrDefault("engine", "thread");
+        int port = Integer.parseInt(options.getOrDefault("port", "12399"));
+        int clientCount = Integer.parseInt(options.getOrDefault("clients", "200"));
+        int messageCount = Integer.parseInt(options.getOrDefault("messages", "200"));
+        long intervalMillis = Long.parseLong(options.getOrDefault("interval-ms", "5"));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int baselineThreads = threads.getThreadCount();
+        Thread server = new Thread(() -> ChatServer.main(new String[]{"--engine=" + engine, "--port=" + port, "--data-dir=none", "--rate-limits=" + RateLimiter.OFF}), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        Clients clients = new Clients(clientCount, messageCount);
+        long rampStart = System.nanoTime();
+        clients.connect(port);
+        if (!clients.joined.await(2, TimeUnit.MINUTES)) {
+            System.out.println("Only " + (clientCount - clients.joined.getCount()) + " clients joined, giving up");
+            System.exit(1);
+        }
+        long rampNanos = System.nanoTime() - rampStart;
+        Thread.sleep(500); // let join/userlist traffic settle
+
+        for (int i = 0; i < messageCount; i++) {
+            clients.send(0, "bench " + i + " " + System.nanoTime());
+            Thread.sleep(intervalMillis);
+        }
+        boolean complete = clients.delivered.await(1, TimeUnit.MINUTES);
+
+        Runtime runtime = Runtime.getRuntime();
+        long heapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        long[] latencies = clients.latencies();
+        Arrays.sort(latencies);
+        System.out.printf("engine=%s clients=%d messages=%d%n", engine, clientCount, messageCount);
+        System.out.printf("  connect ramp     %8.1f ms%n", rampNanos / 1e6);
+        System.out.printf("  platform threads %8d (peak %d, baseline %d)%n",
+                threads.getThreadCount(), threads.getPeakThreadCount(), baselineThreads);
+        System.out.printf("  heap used        %8d MB%n", heapMb);
+        System.out.printf("  deliveries       %8d%s%n", latencies.length, complete ? "" : " (incomplete)");
+        if (latencies.length > 0) {
+            System.out.printf("  latency p50      %8.3f ms%n", percentile(latencies, 0.50) / 1e6);
+            System.out.printf("  latency p99      %8.3f ms%n", percentile(latencies, 0.99) / 1e6);
+            System.out.printf("  latency max      %8.3f ms%n", latencies[latencies.length - 1] / 1e6);
+        }
+        System.exit(0);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    /** All simulated clients share one selector thread so the harness itself stays cheap. */
+    private static final class Clients implements Runnable {
+        private final int count;
+        private final Selector selector;
+        private final SocketChannel[] channels;
+        private final CountDownLatch joined;
+        private final CountDownLatch delivered;
+        private final long[] latencies;
+        private int recorded;
+
+        Clients(int count, int messages) throws IOException {
+            this.count = count;
+            this.selector = Selector.open();
+            this.channels = new SocketChannel[count];
+            this.joined = new CountDownLatch(count);
+            this.delivered = new CountDownLatch(count * messages);
+            this.latencies = new long[count * messages];
+        }
+
+        void connect(int port) throws IOException {
+            Thread reader = new Thread(this, "bench-clients");
+            reader.setDaemon(true);
+            reader.start();
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channel.configureBlocking(false);
+                channels[i] = channel;
+                Client client = new Client("user" + i);
+                synchronized (this) {
+                    selector.wakeup();
+                    channel.register(selector, SelectionKey.OP_READ, client);
+                }
+            }
+        }
+
+        void send(int index, String line) throws IOException {
+            write(channels[index], line);
+        }
+
+        synchronized long[] latencies() {
+            return Arrays.copyOf(latencies, recorded);
+        }
+
+        private synchronized void record(long nanos) {
+            latencies[recorded++] = nanos;
+            delivered.countDown();
+        }
+
+        private static void write(SocketChannel channel, String line) throws IOException {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(line + "\n");
+            synchronized (channel) {
+                while (bytes.hasRemaining()) channel.write(bytes);
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (true) {
+                    selector.select();
+                    synchronized (this) {
+                        // registration barrier: connect() holds the lock while registering
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        Client client = (Client) key.attachment();
+                        buffer.clear();
+                        if (channel.read(buffer) < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        buffer.flip();
+                        client.onBytes(buffer, channel);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Benchmark client error: " + e.getMessage());
+            }
+        }
+
+        private final class Client {
+            private final String name;
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+            Client(String name) {
+                this.name = name;
+            }
+
+            void onBytes(ByteBuffer buffer, SocketChannel channel) throws IOException {
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    String text = line.toString(StandardCharsets.UTF_8);
+                    line.reset();
+                    onLine(text, channel);
+                }
+            }
+
+            private void onLine(String text, SocketChannel channel) throws IOException {
+                if (text.equals("SUBMIT_USERNAME")) {
+                    write(channel, name);
+                } else if (text.equals("SUBMIT_KEY")) {
+                    write(channel, KEY);
+                } else if (text.equals("USERNAME_ACCEPTED")) {
+                    joined.countDown();
+                } else if (text.startsWith("MSG:")) {
+                    int marker = text.lastIndexOf(":bench ");
+                    if (marker < 0) return;
+                    String[] parts = text.substring(marker + 7).split(" ");
+                    record(System.nanoTime() - Long.parseLong(parts[1]));
+                }
+            }
+        }
+    }
+}
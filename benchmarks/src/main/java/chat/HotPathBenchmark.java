@@ -0,0 +1,207 @@
+package chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH microbenchmarks for the server's hot paths: broadcasting, changing a full history, searching it, and
+ * the small per-message steps (timestamps, the client's line parsing). Each benchmark runs in its own fork,
+ * so one benchmark's JIT profile cannot skew another.
+ *
+ * <pre>java -jar benchmarks/target/benchmarks.jar HotPathBenchmark
+ * java -jar benchmarks/target/benchmarks.jar HotPathBenchmark.search -p history=1000000
+ * java -jar benchmarks/target/benchmarks.jar HotPathBenchmark -rf json -rff before.json</pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+    private static final String KEY = "0123456789abcdef";
+
+    /** A room with {@code recipients} members whose queues drop their oldest line once full. */
+    @State(Scope.Thread)
+    public static class Broadcast {
+        @Param({"10", "100", "1000"})
+        public int recipients;
+
+        Room room;
+        OutboundMessage message;
+
+        @Setup
+        public void setUp() {
+            room = new Room("bench", 100);
+            room.lock.lock();
+            try {
+                for (int i = 0; i < recipients; i++) room.addMember("listener" + i, listenerQueue());
+            } finally {
+                room.lock.unlock();
+            }
+            message = OutboundMessage.event(WireProtocol.MSG, UUID.randomUUID().toString(), "alice", "12:34:56", "benchmark message");
+        }
+    }
+
+    @Benchmark
+    public OutboundMessage broadcast(Broadcast state) {
+        state.room.broadcast(state.message);
+        return state.message;
+    }
+
+    /** A logged-in author in a room with ten listeners whose history of {@code history} messages is full. */
+    @State(Scope.Thread)
+    public static class History {
+        @Param("1000")
+        public int history;
+
+        Room room;
+        ChatSession author;
+        ByteBuffer post;
+        ByteBuffer[] edits;
+        ByteBuffer[] pins;
+        int next;
+
+        @Setup
+        public void setUp() {
+            RateLimiter.configure(RateLimiter.OFF);
+            room = new Room("bench", history);
+            ChatServer.rooms.put(room.name, room);
+            for (int i = 0; i < 10; i++) join("listener" + i);
+            author = join("author");
+            for (int i = 0; i < history; i++) say(author, line("message " + i));
+            List<String> ids = new ArrayList<>();
+            room.lock.lock();
+            try {
+                room.history.forEach(message -> ids.add(message.field(0)));
+            } finally {
+                room.lock.unlock();
+            }
+            post = line("another message");
+            edits = ids.stream().map(id -> line("/edit " + id + " edited text")).toArray(ByteBuffer[]::new);
+            pins = ids.stream().map(id -> line("/pin " + id)).toArray(ByteBuffer[]::new);
+        }
+
+        String oldest() {
+            room.lock.lock();
+            try {
+                List<OutboundMessage> first = new ArrayList<>(1);
+                room.history.after(-1, 1, first);
+                return first.get(0).field(0);
+            } finally {
+                room.lock.unlock();
+            }
+        }
+    }
+
+    @Benchmark
+    public ChatSession historyPost(History state) {
+        say(state.author, state.post.rewind());
+        return state.author;
+    }
+
+    @Benchmark
+    public ChatSession historyEdit(History state) {
+        say(state.author, state.edits[state.next++ % state.edits.length].rewind());
+        return state.author;
+    }
+
+    @Benchmark
+    public ChatSession historyPin(History state) {
+        say(state.author, state.pins[state.next++ % state.pins.length].rewind());
+        return state.author;
+    }
+
+    /** Deletes the oldest message and posts a new one, so the history stays full; subtract {@link #historyPost}. */
+    @Benchmark
+    public ChatSession historyDeleteAndRepost(History state) {
+        say(state.author, line("/delete " + state.oldest()));
+        say(state.author, state.post.rewind());
+        return state.author;
+    }
+
+    /**
+     * A history of {@code history} eight-word messages from 100 users, drawn from a 10,000-word vocabulary
+     * in which low-numbered words are common.
+     */
+    @State(Scope.Thread)
+    public static class Search {
+        @Param("1000")
+        public int history;
+
+        @Param({"w40", "w1 w2", "from:user7 w3"})
+        public String query;
+
+        MessageStore store;
+        SearchIndex.Query parsed;
+        final List<OutboundMessage> page = new ArrayList<>(20);
+
+        @Setup
+        public void setUp() {
+            store = new MessageStore(history);
+            Random random = new Random(42);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < history; i++) {
+                text.setLength(0);
+                for (int w = 0; w < 8; w++) {
+                    double r = random.nextDouble();
+                    text.append('w').append((int) (10_000 * r * r * r)).append(' ');
+                }
+                store.append(OutboundMessage.event(WireProtocol.MSG, UUID.randomUUID().toString(), "user" + random.nextInt(100), "12:34:56", text.toString()));
+            }
+            parsed = SearchIndex.Query.parse(query);
+        }
+    }
+
+    /** The newest page of matches. */
+    @Benchmark
+    public List<OutboundMessage> search(Search state) {
+        state.page.clear();
+        state.store.search(state.parsed, Long.MAX_VALUE, 20, state.page);
+        return state.page;
+    }
+
+    @Benchmark
+    public String timestamp() {
+        return ChatSession.getTimestamp();
+    }
+
+    @State(Scope.Thread)
+    public static class MsgLine {
+        String payload = "2f1c7a52-8d4e-4b7e-9a53-3b1f0e6c9d21:alice:12:34:56:hello: how are you?";
+    }
+
+    @Benchmark
+    public String[] clientParseMsgLine(MsgLine state) {
+        return ChatClient.splitWithTimestamp(state.payload, 4, 2);
+    }
+
+    private static ChatSession join(String username) {
+        ChatSession session = new ChatSession(listenerQueue());
+        session.start();
+        say(session, line(username));
+        say(session, line(KEY));
+        say(session, line("/join bench"));
+        return session;
+    }
+
+    private static void say(ChatSession session, ByteBuffer line) {
+        try {
+            session.receive(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static OutboundQueue listenerQueue() {
+        return new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> { }, () -> { });
+    }
+
+    private static ByteBuffer line(String text) {
+        return ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,350 @@
+package chat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator. Connects {@code --users} simulated clients to a {@link ChatServer} on localhost,
+ * spreads them over {@code --rooms} rooms and has them send a mix of public messages, private messages,
+ * typing indicators, edits, deletes and pins at {@code --rate} actions per second in total. The clients
+ * speak protocol version 2 through the same {@link WireProtocol} decoder and {@link MessageCipher} as
+ * {@link ChatClient}; one selector thread reads for all of them.
+ *
+ * <p>Every action carries the time it was scheduled for, not the time it was finally written, so a server
+ * that falls behind shows up as latency instead of as a quietly slower send rate. Each delivery to each
+ * recipient is recorded in a {@link LatencyHistogram} for its kind. Each PM is answered with a read receipt
+ * straight away, which no debouncing client would do, to show how few {@code READ} events the server
+ * coalesces them into. The report covers the connect ramp,
+ * throughput, delivery latency percentiles and heap use. The server runs in this JVM with {@code --engine}
+ * unless {@code --external} points the clients at one already listening on {@code --port}; heap figures
+ * then include the generator itself, and are left out for an external server. For a {@link Cluster},
+ * {@code --port} takes a comma-separated list and users are spread over the nodes in turn. With {@code --deflate} the
+ * clients ask for compressed output; the report's byte and CPU figures show what that saves and costs.
+ *
+ * <pre>java -cp benchmarks/target/benchmarks.jar chat.LoadGenerator --users=2000 --rooms=20 --rate=5000 --seconds=30 --mix=msg:70,pm:10,typing:10,edit:4,delete:3,pin:3</pre>
+ */
+public class LoadGenerator {
+    private enum Action { MSG, PM, TYPING, EDIT, DELETE, PIN }
+
+    private static final long TICK_MS = 10;
+    private static final int OWN_IDS = 16; // recent own message ids a user may edit, delete or pin
+
+    private final User[] users;
+    private final Selector selector;
+    private final CountDownLatch joined;
+    private final Map<Action, LatencyHistogram> latency = new EnumMap<>(Action.class);
+    private final Map<Action, LongAdder> sent = new EnumMap<>(Action.class);
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder receiptsSent = new LongAdder();
+    private final LongAdder receiptsRead = new LongAdder();
+    private final boolean deflate;
+    private final Map<String, Long> scheduledAt = new ConcurrentHashMap<>(); // message id -> when its delete or pin was scheduled
+    private volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length == 2 ? kv[1] : "true");
+        }
+        String engine = options.getOrDefault("engine", "nio");
+        int[] ports = Arrays.stream(options.getOrDefault("port", "12398").split(",")).mapToInt(Integer::parseInt).toArray();
+        int port = ports[0];
+        boolean external = Boolean.parseBoolean(options.getOrDefault("external", "false"));
+        int userCount = Integer.parseInt(options.getOrDefault("users", "1000"));
+        int rooms = Math.max(1, Integer.parseInt(options.getOrDefault("rooms", "10")));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "1000"));
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "10"));
+        Map<Action, Integer> mix = parseMix(options.getOrDefault("mix", "msg:70,pm:10,typing:10,edit:4,delete:3,pin:3"));
+
+        boolean deflate = Boolean.parseBoolean(options.getOrDefault("deflate", "false"));
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        if (!external) {
+            Thread server = new Thread(() -> ChatServer.main(new String[]{"--engine=" + engine, "--port=" + port, "--data-dir=none", "--rate-limits=" + RateLimiter.OFF}), "load-server");
+            server.setDaemon(true);
+            server.start();
+            Thread.sleep(500);
+        }
+        long baseHeap = heapAfterGc(memory);
+
+        LoadGenerator load = new LoadGenerator(userCount, rooms, deflate);
+        long rampStart = System.nanoTime();
+        load.connect(external ? ports : new int[]{port});
+        if (!load.joined.await(2, TimeUnit.MINUTES)) {
+            System.out.println("Only " + (userCount - load.joined.getCount()) + " users joined, giving up");
+            System.exit(1);
+        }
+        long rampNanos = System.nanoTime() - rampStart;
+        long connectedHeap = heapAfterGc(memory);
+        Thread.sleep(500); // let join and presence traffic settle
+
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuStart = os.getProcessCpuTime();
+        load.measuring = true;
+        load.drive(rate, mix, TimeUnit.SECONDS.toNanos(seconds));
+        Thread.sleep(1000); // deliveries still in flight
+        load.measuring = false;
+        long cpuNanos = os.getProcessCpuTime() - cpuStart;
+        long runHeap = memory.getHeapMemoryUsage().getUsed();
+
+        System.out.printf("users=%d rooms=%d engine=%s rate=%.0f/sec seconds=%d%s%n", userCount, rooms, external ? "external" : engine, rate, seconds,
+                deflate ? " deflate" : "");
+        System.out.printf("  connect ramp   %10.1f ms (%.0f users/sec)%n", rampNanos / 1e6, userCount / (rampNanos / 1e9));
+        long actions = load.sent.values().stream().mapToLong(LongAdder::sum).sum();
+        System.out.printf("  actions sent   %10d (%.0f/sec)", actions, actions / (double) seconds);
+        load.sent.forEach((action, count) -> System.out.printf(" %s=%d", action.name().toLowerCase(Locale.ROOT), count.sum()));
+        System.out.println();
+        System.out.printf("  events read    %10d (%.0f/sec)%n", load.deliveries.sum(), load.deliveries.sum() / (seconds + 1.0));
+        System.out.printf("  bytes read     %10.1f MB (%.1f bytes/event)%n", load.bytesRead.sum() / 1e6, load.bytesRead.sum() / (double) Math.max(1, load.deliveries.sum()));
+        System.out.printf("  read receipts  %10d sent, %d delivered%n", load.receiptsSent.sum(), load.receiptsRead.sum());
+        System.out.printf("  cpu            %10.1f s (%.0f%% of one core)%s%n", cpuNanos / 1e9, 100.0 * cpuNanos / TimeUnit.SECONDS.toNanos(seconds + 1),
+                external ? "" : "; server and generator share this JVM");
+        if (external) {
+            System.out.println("  heap           n/a (external server)");
+        } else {
+            System.out.printf("  heap           %10.1f MB idle, %.1f MB connected (%.1f KB/user), %.1f MB at end of run; server and generator share this JVM%n",
+                    baseHeap / 1e6, connectedHeap / 1e6, (connectedHeap - baseHeap) / 1e3 / userCount, runHeap / 1e6);
+        }
+        System.out.printf("  %-12s %10s %9s %9s %9s %9s %9s %9s%n", "latency (ms)", "count", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        load.latency.forEach((action, histogram) -> {
+            if (histogram.count() == 0) return;
+            System.out.printf("  %-12s %10d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", action.name().toLowerCase(Locale.ROOT), histogram.count(),
+                    histogram.percentile(50) / 1e6, histogram.percentile(90) / 1e6, histogram.percentile(99) / 1e6,
+                    histogram.percentile(99.9) / 1e6, histogram.percentile(99.99) / 1e6, histogram.max() / 1e6);
+        });
+        System.exit(0);
+    }
+
+    private static Map<Action, Integer> parseMix(String spec) {
+        Map<Action, Integer> mix = new EnumMap<>(Action.class);
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":", 2);
+            mix.put(Action.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)), kv.length == 2 ? Integer.parseInt(kv[1].trim()) : 1);
+        }
+        return mix;
+    }
+
+    private static long heapAfterGc(MemoryMXBean memory) throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    LoadGenerator(int userCount, int rooms, boolean deflate) throws IOException {
+        this.deflate = deflate;
+        this.selector = Selector.open();
+        this.joined = new CountDownLatch(userCount);
+        this.users = new User[userCount];
+        for (int i = 0; i < userCount; i++) {
+            users[i] = new User("load" + i, String.format("%016d", i), rooms == 1 ? Room.LOBBY : "load-" + (i % rooms));
+        }
+        for (Action action : Action.values()) {
+            latency.put(action, new LatencyHistogram());
+            sent.put(action, new LongAdder());
+        }
+    }
+
+    void connect(int[] ports) throws IOException {
+        Thread reader = new Thread(this::read, "load-clients");
+        reader.setDaemon(true);
+        reader.start();
+        for (int i = 0; i < users.length; i++) {
+            User user = users[i];
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", ports[i % ports.length]));
+            channel.configureBlocking(false);
+            user.channel = channel;
+            synchronized (this) {
+                selector.wakeup();
+                channel.register(selector, SelectionKey.OP_READ, user);
+            }
+        }
+    }
+
+    /** Sends actions from random users at {@code rate} per second for {@code durationNanos}. */
+    void drive(double rate, Map<Action, Integer> mix, long durationNanos) throws IOException, InterruptedException {
+        Action[] weighted = mix.entrySet().stream()
+                .flatMap(e -> Collections.nCopies(e.getValue(), e.getKey()).stream())
+                .toArray(Action[]::new);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long start = System.nanoTime();
+        long intervalNanos = (long) (1e9 / rate);
+        for (long due = start; due - start < durationNanos; due += intervalNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > TimeUnit.MILLISECONDS.toNanos(TICK_MS)) TimeUnit.NANOSECONDS.sleep(wait);
+            User user = users[random.nextInt(users.length)];
+            Action action = weighted[random.nextInt(weighted.length)];
+            if (act(user, action, due, random)) sent.get(action).increment();
+        }
+    }
+
+    private boolean act(User user, Action action, long due, ThreadLocalRandom random) throws IOException {
+        switch (action) {
+            case MSG -> user.send("load " + due);
+            case PM -> user.send("/pm " + users[random.nextInt(users.length)].name + " load " + due);
+            case TYPING -> user.send(random.nextBoolean() ? "/typing" : "/stoptyping");
+            case EDIT, DELETE, PIN -> {
+                String msgId = user.ownMessage(action == Action.DELETE);
+                if (msgId == null) return false;
+                if (action == Action.EDIT) {
+                    user.send("/edit " + msgId + " edited " + due);
+                } else {
+                    scheduledAt.put(msgId, due);
+                    user.send((action == Action.DELETE ? "/delete " : "/pin ") + msgId);
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Typing indicators are aggregated per tick on the server, so they are counted as events but not timed. */
+    private void record(Action action, long scheduled) {
+        if (measuring) latency.get(action).record(System.nanoTime() - scheduled);
+    }
+
+    /** Parses the nanoTime at the end of a {@code "load <nanos>"} or {@code "edited <nanos>"} text, or returns -1. */
+    private static long scheduledTime(String text, String prefix) {
+        if (!text.startsWith(prefix)) return -1;
+        try {
+            return Long.parseLong(text.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void read() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (true) {
+                selector.select();
+                synchronized (this) {
+                    // registration barrier: connect() holds the lock while registering
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    User user = (User) key.attachment();
+                    buffer.clear();
+                    int read = user.channel.read(buffer);
+                    if (read < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    if (measuring) bytesRead.add(read);
+                    buffer.flip();
+                    user.decoder.decode(buffer, user);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Load generator client error: " + e.getMessage());
+        }
+    }
+
+    /** One simulated client; its events are handled on the selector thread. */
+    private final class User implements WireProtocol.Decoder.Handler {
+        final String name;
+        final String key;
+        final String room;
+        final MessageCipher cipher;
+        final WireProtocol.Decoder decoder = new WireProtocol.Decoder(WireProtocol.MAX_FRAME_LENGTH);
+        final Deque<String> ownIds = new ArrayDeque<>(); // guarded by itself
+        SocketChannel channel;
+        boolean binary;
+
+        User(String name, String key, String room) {
+            this.name = name;
+            this.key = key;
+            this.room = room;
+            this.cipher = new MessageCipher(key);
+        }
+
+        void send(String command) throws IOException {
+            byte[] bytes = binary ? WireProtocol.encodeCommand(command) : (command + "\n").getBytes(StandardCharsets.UTF_8);
+            if (bytes == null) return;
+            ByteBuffer out = ByteBuffer.wrap(bytes);
+            synchronized (channel) {
+                while (out.hasRemaining()) channel.write(out);
+            }
+        }
+
+        /** One of this user's recent messages, taken off the list if it is about to be deleted; null if none. */
+        String ownMessage(boolean remove) {
+            synchronized (ownIds) {
+                return remove ? ownIds.pollFirst() : ownIds.peekLast();
+            }
+        }
+
+        @Override
+        public void onLine(String line) throws IOException {
+            if (line.equals("SUBMIT_USERNAME")) {
+                send(name);
+            } else if (line.equals("SUBMIT_KEY")) {
+                send(key + WireProtocol.REQUEST + (deflate ? WireProtocol.COMPRESS : ""));
+            } else if (line.startsWith(WireProtocol.ACCEPTED)) {
+                decoder.switchToBinary();
+                binary = true;
+                if (line.endsWith(WireProtocol.COMPRESS)) decoder.switchToDeflate();
+            }
+        }
+
+        @Override
+        public void onFrame(WireProtocol.Frame f) throws IOException {
+            if (measuring) deliveries.increment();
+            long scheduled;
+            switch (f.type()) {
+                case WireProtocol.ROOM -> {
+                    if (f.field(0).equals(room)) {
+                        joined.countDown();
+                    } else {
+                        send("/join " + room);
+                    }
+                }
+                case WireProtocol.MSG -> {
+                    if (f.field(1).equals(name)) {
+                        synchronized (ownIds) {
+                            ownIds.addLast(f.field(0));
+                            if (ownIds.size() > OWN_IDS) ownIds.pollFirst();
+                        }
+                    }
+                    if ((scheduled = scheduledTime(f.field(3), "load ")) >= 0) record(Action.MSG, scheduled);
+                }
+                case WireProtocol.PM -> {
+                    if (!f.field(1).equals(name)) {
+                        send("/read " + f.field(1) + " " + f.field(0)); // on every PM, undebounced: the server coalesces them
+                        if (measuring) receiptsSent.increment();
+                    }
+                    try {
+                        if ((scheduled = scheduledTime(cipher.decrypt(f.field(4)), "load ")) >= 0) record(Action.PM, scheduled);
+                    } catch (java.security.GeneralSecurityException e) {
+                        System.out.println(name + " could not decrypt a PM: " + e.getMessage());
+                    }
+                }
+                case WireProtocol.READ -> {
+                    if (measuring) receiptsRead.increment();
+                }
+                case WireProtocol.EDIT -> {
+                    if ((scheduled = scheduledTime(f.field(3), "edited ")) >= 0) record(Action.EDIT, scheduled);
+                }
+                case WireProtocol.DELETE -> {
+                    Long at = scheduledAt.get(f.field(0));
+                    if (at != null) record(Action.DELETE, at);
+                }
+                case WireProtocol.PIN -> {
+                    Long at = scheduledAt.get(f.field(0));
+                    if (at != null) record(Action.PIN, at);
+                }
+                default -> { }
+            }
+        }
+    }
+}
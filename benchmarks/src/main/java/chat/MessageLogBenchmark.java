@@ -0,0 +1,60 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Writes a message log of the requested size into a scratch directory, then times how long a
+ * restarting server would take to rebuild its history from it.
+ *
+ * <pre>java -cp benchmarks/target/benchmarks.jar chat.MessageLogBenchmark --messages=1000000 --history-size=100000</pre>
+ */
+public class MessageLogBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length == 2 ? kv[1] : "true");
+        }
+        int messageCount = Integer.parseInt(options.getOrDefault("messages", "1000000"));
+        int historySize = Integer.parseInt(options.getOrDefault("history-size", "100000"));
+        Path dir = Files.createTempDirectory("message-log-bench");
+
+        try {
+            Room room = new Room(Room.LOBBY, historySize);
+            MessageLog log = new MessageLog(dir, 64 * 1024 * 1024, 10, 0);
+            log.start();
+            long writeStart = System.nanoTime();
+            for (int i = 0; i < messageCount; i++) {
+                OutboundMessage message = OutboundMessage.event(WireProtocol.MSG, UUID.randomUUID().toString(),
+                        "user" + (i % 100), "12:00:00", "benchmark message number " + i);
+                room.lock.lock();
+                try {
+                    log.append(room.name, room.history.append(message), message);
+                } finally {
+                    room.lock.unlock();
+                }
+            }
+            log.close();
+            long writeNanos = System.nanoTime() - writeStart;
+
+            Room restored = new Room(Room.LOBBY, historySize);
+            long replayStart = System.nanoTime();
+            long records = new MessageLog(dir, 64 * 1024 * 1024, 10, 0).replay(name -> restored);
+            long replayNanos = System.nanoTime() - replayStart;
+
+            System.out.printf("Wrote %d messages (%d MB) in %d ms%n", messageCount, size(dir) / (1024 * 1024), writeNanos / 1_000_000);
+            System.out.printf("Replayed %d records into %d messages in %d ms%n", records, restored.history.size(), replayNanos / 1_000_000);
+        } finally {
+            for (Path path : Files.list(dir).toList()) Files.delete(path);
+            Files.delete(dir);
+        }
+    }
+
+    private static long size(Path dir) throws IOException {
+        long total = 0;
+        for (Path path : Files.list(dir).toList()) total += Files.size(path);
+        return total;
+    }
+}
@@ -0,0 +1,82 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures private-message throughput as posting threads are added. Sessions are driven in-process,
+ * without sockets: each thread owns one sender session and sends {@code /pm} to random recipients
+ * among {@code --users} logged-in sessions, so every PM is a registry lookup plus two encryptions.
+ *
+ * <pre>java -cp benchmarks/target/benchmarks.jar chat.PmBenchmark --users=1000 --threads=1,2,4,8 --seconds=3</pre>
+ */
+public class PmBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length == 2 ? kv[1] : "true");
+        }
+        int users = Integer.parseInt(options.getOrDefault("users", "1000"));
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "3"));
+        String[] threadCounts = options.getOrDefault("threads", "1,2,4,8").split(",");
+        RateLimiter.configure(RateLimiter.OFF);
+
+        List<ChatSession> recipients = new ArrayList<>();
+        for (int i = 0; i < users; i++) recipients.add(join("user" + i));
+        byte[][] lines = new byte[users][];
+        for (int i = 0; i < users; i++) lines[i] = ("/pm user" + i + " benchmark message\n").getBytes(StandardCharsets.UTF_8);
+
+        run(lines, Runtime.getRuntime().availableProcessors(), 2); // warm up the JIT
+        System.out.printf("users=%d cores=%d%n", users, Runtime.getRuntime().availableProcessors());
+        for (String threads : threadCounts) {
+            long pms = run(lines, Integer.parseInt(threads.trim()), seconds);
+            System.out.printf("  threads=%-3s %,12.0f PMs/sec%n", threads.trim(), pms / (double) seconds);
+        }
+        recipients.forEach(ChatSession::close);
+    }
+
+    private static int round;
+
+    /** Returns the number of PMs sent over {@code seconds}. */
+    private static long run(byte[][] lines, int threads, long seconds) throws Exception {
+        LongAdder pms = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        List<ChatSession> senders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) senders.add(join("sender" + (++round)));
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (ChatSession sender : senders) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    while (System.nanoTime() < end) {
+                        sender.receive(ByteBuffer.wrap(lines[random.nextInt(lines.length)]));
+                        count++;
+                    }
+                } catch (Exception e) {
+                    System.out.println("Sender failed: " + e);
+                }
+                pms.add(count);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        senders.forEach(ChatSession::close);
+        return pms.sum();
+    }
+
+    /** A logged-in session whose queue nobody drains; a full queue drops its oldest line. */
+    private static ChatSession join(String username) throws Exception {
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> { }, () -> { });
+        ChatSession session = new ChatSession(queue);
+        session.start();
+        session.receive(ByteBuffer.wrap((username + "\n0123456789abcdef\n").getBytes(StandardCharsets.UTF_8)));
+        return session;
+    }
+}
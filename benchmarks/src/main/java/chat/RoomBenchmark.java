@@ -0,0 +1,94 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how aggregate posting throughput grows with the number of rooms. Sessions are driven
+ * in-process, without sockets: one posting thread per core, each with its own session, spread over
+ * the rooms. With one room every post contends for the same room lock; with as many rooms as
+ * threads, no two posters share one.
+ *
+ * <pre>java -cp benchmarks/target/benchmarks.jar chat.RoomBenchmark --rooms=1,2,4,8 --members=8 --seconds=3</pre>
+ */
+public class RoomBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length == 2 ? kv[1] : "true");
+        }
+        int threads = Integer.parseInt(options.getOrDefault("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        int members = Integer.parseInt(options.getOrDefault("members", "8"));
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "3"));
+        String[] roomCounts = options.getOrDefault("rooms", "1,2,4,8").split(",");
+        RateLimiter.configure(RateLimiter.OFF);
+
+        run(1, members, threads, 2); // warm up the JIT
+        System.out.printf("threads=%d listeners per room=%d%n", threads, members);
+        for (String rooms : roomCounts) {
+            long[] result = run(Integer.parseInt(rooms.trim()), members, threads, seconds);
+            System.out.printf("  rooms=%-3s %,12.0f posts/sec %,14.0f deliveries/sec%n", rooms.trim(),
+                    result[0] / (double) seconds, result[1] / (double) seconds);
+        }
+    }
+
+    private static int round;
+
+    /** Returns {posts, deliveries} over {@code seconds}. */
+    private static long[] run(int roomCount, int members, int threads, long seconds) throws Exception {
+        String prefix = "r" + (++round) + "-";
+        List<ChatSession> sessions = new ArrayList<>();
+        int[] roomSize = new int[roomCount];
+        for (int room = 0; room < roomCount; room++) {
+            for (int i = 0; i < members; i++) sessions.add(join(prefix + room + "-listener" + i, prefix + room));
+            roomSize[room] = members;
+        }
+        ChatSession[] posters = new ChatSession[threads];
+        for (int t = 0; t < threads; t++) {
+            posters[t] = join(prefix + "poster" + t, prefix + (t % roomCount));
+            sessions.add(posters[t]);
+            roomSize[t % roomCount]++;
+        }
+
+        LongAdder posts = new LongAdder();
+        LongAdder deliveries = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        for (int t = 0; t < threads; t++) {
+            ChatSession poster = posters[t];
+            int fanOut = roomSize[t % roomCount];
+            new Thread(() -> {
+                ByteBuffer line = ByteBuffer.wrap("benchmark message\n".getBytes(StandardCharsets.UTF_8));
+                long count = 0;
+                try {
+                    while (System.nanoTime() < end) {
+                        poster.receive(line.rewind());
+                        count++;
+                    }
+                } catch (Exception e) {
+                    System.out.println("Poster failed: " + e);
+                }
+                posts.add(count);
+                deliveries.add(count * fanOut);
+                done.countDown();
+            }, "poster-" + t).start();
+        }
+        done.await();
+        sessions.forEach(ChatSession::close);
+        return new long[]{posts.sum(), deliveries.sum()};
+    }
+
+    /** A logged-in session in {@code room} whose queue nobody drains; a full queue drops its oldest line. */
+    private static ChatSession join(String username, String room) throws Exception {
+        OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> { }, () -> { });
+        ChatSession session = new ChatSession(queue);
+        session.start();
+        session.receive(ByteBuffer.wrap((username + "\n0123456789abcdef\n/join " + room + "\n").getBytes(StandardCharsets.UTF_8)));
+        return session;
+    }
+}